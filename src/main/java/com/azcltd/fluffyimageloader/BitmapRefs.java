@@ -0,0 +1,70 @@
+package com.azcltd.fluffyimageloader;
+
+import android.graphics.Bitmap;
+import com.azcltd.fluffyimageloader.cache.BitmapPool;
+
+import java.util.WeakHashMap;
+
+/**
+ * Counts references to bitmaps created by the loader: memory cache, loaded bitmaps waiting to be delivered and image
+ * views displaying bitmaps. Bitmap is given to the pool for reuse only once it is not referenced anymore.<br/>
+ * <br/>
+ * Bitmaps given to loading listeners are never reused, since there is no way to know when listener stops using them.
+ * Bitmaps which are never released (e.g. displayed by image view which was garbage collected) are simply not reused.
+ */
+class BitmapRefs {
+
+    private final BitmapPool mPool;
+    /** Bitmaps are compared by identity, entries are gone along with bitmaps */
+    private final WeakHashMap<Bitmap, Ref> mRefs = new WeakHashMap<Bitmap, Ref>();
+
+    BitmapRefs(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Starts tracking of newly created (or decoded into reused pixels) bitmap, with one reference held by caller.
+     */
+    synchronized void track(Bitmap bitmap) {
+        if (bitmap != null) mRefs.put(bitmap, new Ref());
+    }
+
+    /**
+     * Adds reference to given bitmap.
+     *
+     * @return false if bitmap was already given to the pool, so it should not be used anymore.
+     */
+    synchronized boolean acquire(Bitmap bitmap) {
+        Ref ref = mRefs.get(bitmap);
+        if (ref == null) return true; // Not created by the loader
+        if (ref.isFreed) return false;
+        ref.count++;
+        return true;
+    }
+
+    /**
+     * Removes reference to given bitmap. Bitmap is given to the pool once there are no references left.
+     */
+    synchronized void release(Bitmap bitmap) {
+        Ref ref = bitmap == null ? null : mRefs.get(bitmap);
+        if (ref == null || ref.isFreed) return;
+        if (--ref.count > 0 || ref.isPinned) return;
+        ref.isFreed = true;
+        mPool.put(bitmap);
+    }
+
+    /**
+     * Marks given bitmap as referenced by someone we cannot track, so that it is never reused.
+     */
+    synchronized void pin(Bitmap bitmap) {
+        Ref ref = bitmap == null ? null : mRefs.get(bitmap);
+        if (ref != null) ref.isPinned = true;
+    }
+
+    private static class Ref {
+        int count = 1;
+        boolean isPinned;
+        boolean isFreed;
+    }
+
+}
@@ -1,10 +1,14 @@
 package com.azcltd.fluffyimageloader;
 
 import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.DisplayMetrics;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.animation.AlphaAnimation;
 import android.view.animation.Animation;
 import android.widget.ImageView;
+import com.azcltd.fluffyimageloader.loader.OnResourceLoadingListener;
 import com.azcltd.fluffyimageloader.loader.ResourceSpecs;
 
 import java.lang.ref.WeakReference;
@@ -12,6 +16,11 @@ import java.util.Collection;
 
 public class ImageSpecs extends ResourceSpecs<Bitmap> {
 
+    /**
+     * Target size value which means that image should be decoded in its original size.
+     */
+    public static final int SIZE_ORIGINAL = -1;
+
     private static final long ANIMATION_DURATION = 200;
     private static final int TAG_IMAGE_SPECS_OBJECT = -1;
 
@@ -19,7 +28,16 @@ public class ImageSpecs extends ResourceSpecs<Bitmap> {
     private WeakReference<View> mProgressView;
     private boolean mIsDisplayImageWhileProgress;
     private boolean mIsOutOfMemory;
+    private int mDecodeAttempt;
+    private boolean mIsSafeDecode;
     private boolean mIsWithAnimation;
+    private int mTargetWidth;
+    private int mTargetHeight;
+    private int mViewWidth;
+    private int mViewHeight;
+    private BitmapRefs mBitmapRefs;
+    private Bitmap mDisplayedBitmap;
+    private boolean mHasLoadingListener;
 
     public ImageSpecs(String uri) {
         super(uri);
@@ -61,16 +79,15 @@ public class ImageSpecs extends ResourceSpecs<Bitmap> {
 
     @Override
     public void onLoaded(Bitmap image, boolean fromMemory, boolean fromDisk) {
+        if (image != null && mHasLoadingListener && mBitmapRefs != null) mBitmapRefs.pin(image);
         super.onLoaded(image, fromMemory, fromDisk);
 
-        if (isOutOfMemory()) {
-            // TODO: pass bitmap decoding options, make several attempts
-        }
-
         ImageView imageView = getImageView();
         if (imageView == null) return;
 
         if (image != null) {
+            releaseDisplayedBitmap();
+            if (mBitmapRefs != null && mBitmapRefs.acquire(image)) mDisplayedBitmap = image;
             imageView.setImageBitmap(image);
 
             if (!fromMemory && mIsWithAnimation) {
@@ -88,8 +105,44 @@ public class ImageSpecs extends ResourceSpecs<Bitmap> {
         }
     }
 
+    /**
+     * Decoding state of previous uri (see {@link #getDecodeAttempt}) is reset, so new image is decoded in full quality.
+     */
+    @Override
+    public void setUri(String uri) {
+        if (getUri() != null && !getUri().equals(uri)) {
+            mIsOutOfMemory = false;
+            mDecodeAttempt = 0;
+            mIsSafeDecode = false;
+        }
+        super.setUri(uri);
+    }
+
+    /**
+     * Note, that images given to the listener are never reused to decode other images, since listener may keep them.
+     */
+    @Override
+    public void setOnResourceLoadingListener(OnResourceLoadingListener<Bitmap> listener) {
+        super.setOnResourceLoadingListener(listener);
+        mHasLoadingListener = listener != null;
+    }
+
+    void setBitmapRefs(BitmapRefs refs) {
+        mBitmapRefs = refs;
+    }
+
+    /**
+     * Should be called once image view does not display image set by {@link #onLoaded} anymore, so that it can be
+     * reused to decode other images.
+     */
+    void releaseDisplayedBitmap() {
+        if (mDisplayedBitmap != null && mBitmapRefs != null) mBitmapRefs.release(mDisplayedBitmap);
+        mDisplayedBitmap = null;
+    }
+
     public ImageSpecs setImageView(ImageView imageView) {
         mImageView = new WeakReference<ImageView>(imageView);
+        measureView(imageView);
         return this;
     }
 
@@ -129,15 +182,130 @@ public class ImageSpecs extends ResourceSpecs<Bitmap> {
     }
 
     /**
-     * @return true if last attempt to load image was finished with OutOfMemoryError
+     * Sets size to which image should be downsampled while decoding. Image will be decoded with the largest sample size
+     * which keeps it not smaller than given size.<br/>
+     * If set to 0 (default) then size of the ImageView will be used. If set to {@link #SIZE_ORIGINAL} then image will
+     * not be downsampled in corresponding dimension.
+     */
+    public ImageSpecs setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+        return this;
+    }
+
+    /**
+     * @return Target image width or 0 if image should not be downsampled by width.
+     */
+    public int getTargetWidth() {
+        return mTargetWidth == 0 ? mViewWidth : Math.max(mTargetWidth, 0);
+    }
+
+    /**
+     * @return Target image height or 0 if image should not be downsampled by height.
+     */
+    public int getTargetHeight() {
+        return mTargetHeight == 0 ? mViewHeight : Math.max(mTargetHeight, 0);
+    }
+
+    /**
+     * Stores size of given ImageView to be used as target size. If view is not measured yet then its layout params,
+     * max size or screen size is used instead.
+     */
+    private void measureView(ImageView view) {
+        if (view == null) {
+            mViewWidth = mViewHeight = 0;
+            return;
+        }
+
+        DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+
+        mViewWidth = view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
+        if (mViewWidth <= 0 && params != null) mViewWidth = params.width;
+        if (mViewWidth <= 0 && Build.VERSION.SDK_INT >= 16) mViewWidth = view.getMaxWidth();
+        if (mViewWidth <= 0 || mViewWidth == Integer.MAX_VALUE) mViewWidth = metrics.widthPixels;
+
+        mViewHeight = view.getHeight() - view.getPaddingTop() - view.getPaddingBottom();
+        if (mViewHeight <= 0 && params != null) mViewHeight = params.height;
+        if (mViewHeight <= 0 && Build.VERSION.SDK_INT >= 16) mViewHeight = view.getMaxHeight();
+        if (mViewHeight <= 0 || mViewHeight == Integer.MAX_VALUE) mViewHeight = metrics.heightPixels;
+    }
+
+    /**
+     * @return true if last attempt to load image was finished with OutOfMemoryError.<br/>
+     *         Note, that after OutOfMemoryError image is automatically decoded again with higher sample size and
+     *         cheaper config, so this flag is only set if all attempts failed.
      */
     public boolean isOutOfMemory() {
         return mIsOutOfMemory;
     }
 
+    /**
+     * @return Max target width among given specs or 0 if at least one of the specs needs image not downsampled by width.
+     */
+    static int getTargetWidth(Collection<ResourceSpecs<Bitmap>> list) {
+        int width = 0;
+        for (ResourceSpecs<Bitmap> specs : list) {
+            int specsWidth = ((ImageSpecs) specs).getTargetWidth();
+            if (specsWidth == 0) return 0;
+            width = Math.max(width, specsWidth);
+        }
+        return width;
+    }
+
+    /**
+     * @return Max target height among given specs or 0 if at least one of the specs needs image not downsampled by
+     *         height.
+     */
+    static int getTargetHeight(Collection<ResourceSpecs<Bitmap>> list) {
+        int height = 0;
+        for (ResourceSpecs<Bitmap> specs : list) {
+            int specsHeight = ((ImageSpecs) specs).getTargetHeight();
+            if (specsHeight == 0) return 0;
+            height = Math.max(height, specsHeight);
+        }
+        return height;
+    }
+
     static void setOutOfMemory(Collection<ResourceSpecs<Bitmap>> list, boolean isOutOfMemory) {
         for (ResourceSpecs<Bitmap> specs : list)
             ((ImageSpecs) specs).mIsOutOfMemory = isOutOfMemory;
     }
 
+    static boolean isOutOfMemory(Collection<ResourceSpecs<Bitmap>> list) {
+        for (ResourceSpecs<Bitmap> specs : list)
+            if (((ImageSpecs) specs).mIsOutOfMemory) return true;
+        return false;
+    }
+
+    /**
+     * @return Number of failed (due to OutOfMemoryError) decoding attempts made for given specs.
+     */
+    static int getDecodeAttempt(Collection<ResourceSpecs<Bitmap>> list) {
+        int attempt = 0;
+        for (ResourceSpecs<Bitmap> specs : list)
+            attempt = Math.max(attempt, ((ImageSpecs) specs).mDecodeAttempt);
+        return attempt;
+    }
+
+    static void setDecodeAttempt(Collection<ResourceSpecs<Bitmap>> list, int attempt) {
+        for (ResourceSpecs<Bitmap> specs : list)
+            ((ImageSpecs) specs).mDecodeAttempt = attempt;
+    }
+
+    /**
+     * @return Whether image should be decoded in safe mode, since previous attempt failed to reset the stream or to
+     *         reuse a bitmap.
+     */
+    static boolean isSafeDecode(Collection<ResourceSpecs<Bitmap>> list) {
+        for (ResourceSpecs<Bitmap> specs : list)
+            if (((ImageSpecs) specs).mIsSafeDecode) return true;
+        return false;
+    }
+
+    static void setSafeDecode(Collection<ResourceSpecs<Bitmap>> list, boolean isSafeDecode) {
+        for (ResourceSpecs<Bitmap> specs : list)
+            ((ImageSpecs) specs).mIsSafeDecode = isSafeDecode;
+    }
+
 }
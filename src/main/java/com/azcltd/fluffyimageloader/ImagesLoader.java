@@ -1,24 +1,42 @@
 package com.azcltd.fluffyimageloader;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.os.Build;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
-import com.azcltd.fluffyimageloader.cache.LruCache;
+import com.azcltd.fluffyimageloader.cache.BitmapPool;
+import com.azcltd.fluffyimageloader.cache.ConcurrentLruCache;
 import com.azcltd.fluffyimageloader.loader.ResourceSpecs;
 import com.azcltd.fluffyimageloader.loader.ResourcesLoader;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ImagesLoader extends ResourcesLoader<Bitmap> {
 
     public static final int NO_IMAGE_RES_ID = -1;
 
+	private static final int DECODE_MARK_LIMIT = 1024 * 1024;
+	private static final int MAX_DECODE_ATTEMPTS = 3;
+	private static final float HEAP_HIGH_WATERMARK = 0.9f;
+	private static final char MEMORY_KEY_SIZE_SEPARATOR = '@';
+	private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
 	private static ImagesLoader sLoader;
 
 	public static ImagesLoader get() {
@@ -30,29 +48,232 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 		if (sLoader == null) sLoader = new ImagesLoader(context.getApplicationContext());
 	}
 
-	private LruCache<String, Bitmap> mMemoryCache;
+	private ConcurrentLruCache<String, Bitmap> mMemoryCache;
+	private BitmapPool mBitmapPool;
+	private BitmapRefs mBitmapRefs;
+	/** Memory cache keys of all decoded variants (sizes) of each resource, see {@link #toMemoryCacheKey} */
+	private final ConcurrentHashMap<String, Set<String>> mVariantKeys = new ConcurrentHashMap<String, Set<String>>();
+	/** Bitmaps decoded with reduced quality after OutOfMemoryError, they are never stored in memory cache */
+	private final Set<Bitmap> mDegradedBitmaps = Collections.synchronizedSet(
+			Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>()));
 
 	protected ImagesLoader(Context appContext) {
 		super(appContext);
 
 		int availableMemory = ((ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
 		int cacheMemory = availableMemory * 1024 * 1024 / 8;
+		int poolMemory = availableMemory * 1024 * 1024 / 16;
 		if (isVerbose()) Log.d(TAG, "0. Initializing memory cache of size: " + cacheMemory);
-		mMemoryCache = new LruCache<String, Bitmap>(cacheMemory) {
+		mBitmapPool = new BitmapPool(poolMemory);
+		mBitmapRefs = new BitmapRefs(mBitmapPool);
+		mMemoryCache = new ConcurrentLruCache<String, Bitmap>(cacheMemory) {
 			protected int sizeOf(String key, Bitmap value) {
 				return value == null ? 0 : value.getRowBytes() * value.getHeight();
 			}
+
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+				if (newValue == null) removeVariantKey(key);
+				// Evicted bitmaps are given to decoder for reuse once they are not displayed or waiting for delivery
+				mBitmapRefs.release(oldValue);
+			}
 		};
+
+		if (Build.VERSION.SDK_INT >= 14) appContext.registerComponentCallbacks(new MemoryCallbacks());
+	}
+
+	/**
+	 * Releases part of memory cache and bitmap pool depending on given level:<br/>
+	 * {@code TRIM_MEMORY_RUNNING_MODERATE} and {@code TRIM_MEMORY_UI_HIDDEN} - trims to 75%,<br/>
+	 * {@code TRIM_MEMORY_RUNNING_LOW} and {@code TRIM_MEMORY_BACKGROUND} - trims to 50%,<br/>
+	 * {@code TRIM_MEMORY_RUNNING_CRITICAL} and higher levels - clears everything.<br/>
+	 * <br/>
+	 * Called automatically on API 14+, see {@link ComponentCallbacks2}.
+	 */
+	public void trimMemory(int level) {
+		int percent;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			percent = 0;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			percent = 50;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			percent = 75;
+		} else {
+			return;
+		}
+
+		if (isVerbose()) Log.d(TAG, "Trimming memory cache to " + percent + "%, level: " + level);
+		// Memory cache goes first, since its evicted bitmaps may go to the pool
+		if (percent == 0) {
+			mMemoryCache.evictAll();
+			mBitmapPool.evictAll();
+		} else {
+			mMemoryCache.trimToSize(mMemoryCache.maxSize() / 100 * percent);
+			mBitmapPool.trimToSize(mBitmapPool.maxSize() / 100 * percent);
+		}
+	}
+
+	/**
+	 * Trims memory cache if estimated heap usage is higher than {@link #HEAP_HIGH_WATERMARK} of max heap size.
+	 */
+	private void checkHeapUsage() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		if (used > runtime.maxMemory() * HEAP_HIGH_WATERMARK) {
+			trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+		}
 	}
 
 	@Override
 	protected Bitmap getFromMemoryCache(String key) {
-		return mMemoryCache.get(key);
+		Bitmap bitmap = mMemoryCache.get(key);
+		return bitmap != null && acquireCached(key, bitmap) ? bitmap : null;
 	}
 
 	@Override
 	protected void putToMemoryCache(String key, Bitmap image) {
+		if (mDegradedBitmaps.contains(image)) return; // Otherwise full quality requests will get degraded image
+		mBitmapRefs.acquire(image); // Reference of memory cache, released in entryRemoved
 		mMemoryCache.put(key, image);
+		addVariantKey(key);
+	}
+
+	@Override
+	protected void releaseResource(Bitmap image) {
+		mBitmapRefs.release(image);
+	}
+
+	@Override
+	protected void loadResource(ResourceSpecs<Bitmap> specs) {
+		if (specs instanceof ImageSpecs) ((ImageSpecs) specs).setBitmapRefs(mBitmapRefs);
+		super.loadResource(specs);
+	}
+
+	/**
+	 * Acquires reference to the bitmap just taken from memory cache. Bitmap may be evicted and given to the pool right
+	 * after it was taken, so it is only used if it is still cached once reference is acquired.
+	 */
+	private boolean acquireCached(String key, Bitmap bitmap) {
+		if (!mBitmapRefs.acquire(bitmap)) return false;
+		if (mMemoryCache.peek(key) == bitmap) return true;
+		mBitmapRefs.release(bitmap);
+		return false;
+	}
+
+	/**
+	 * Memory cache key consists of resource key and target size: {@code <cacheKey>@<width>x<height>}.
+	 */
+	@Override
+	protected String toMemoryCacheKey(String cacheKey, Collection<ResourceSpecs<Bitmap>> specsList) {
+		if (cacheKey == null) return null;
+		int width = ImageSpecs.getTargetWidth(specsList);
+		int height = ImageSpecs.getTargetHeight(specsList);
+		return cacheKey + MEMORY_KEY_SIZE_SEPARATOR + width + 'x' + height;
+	}
+
+	/**
+	 * Looks for the smallest variant of the image decoded for larger target size.
+	 */
+	@Override
+	protected Bitmap findMemoryCacheVariant(String cacheKey, Collection<ResourceSpecs<Bitmap>> specsList) {
+		Set<String> keys = cacheKey == null ? null : mVariantKeys.get(cacheKey);
+		if (keys == null) return null;
+
+		int targetWidth = ImageSpecs.getTargetWidth(specsList);
+		int targetHeight = ImageSpecs.getTargetHeight(specsList);
+
+		Bitmap variant = null;
+		String variantKey = null;
+		for (String key : keys) {
+			int separator = key.lastIndexOf(MEMORY_KEY_SIZE_SEPARATOR);
+			int sizeSeparator = key.indexOf('x', separator);
+			int width = Integer.parseInt(key.substring(separator + 1, sizeSeparator));
+			int height = Integer.parseInt(key.substring(sizeSeparator + 1));
+
+			// 0 stands for original size, it can only be created from another original size variant
+			boolean isLarger = (targetWidth == 0 ? width == 0 : width == 0 || width >= targetWidth)
+					&& (targetHeight == 0 ? height == 0 : height == 0 || height >= targetHeight);
+			if (!isLarger) continue;
+
+			// Not touching access order and stats of variants which will not be used
+			Bitmap bitmap = mMemoryCache.peek(key);
+			if (bitmap == null || bitmap.isRecycled()) continue;
+
+			if (variant == null || bitmap.getWidth() * bitmap.getHeight() < variant.getWidth() * variant.getHeight()) {
+				variant = bitmap;
+				variantKey = key;
+			}
+		}
+		if (variant == null) return null;
+		Bitmap bitmap = mMemoryCache.get(variantKey); // Marking chosen variant as recently used
+		return bitmap == variant && acquireCached(variantKey, variant) ? variant : null;
+	}
+
+	/**
+	 * Scales given variant down to the target size. Resulting bitmap is never smaller than target size.
+	 */
+	@Override
+	protected Bitmap loadFromVariant(Bitmap variant, Collection<ResourceSpecs<Bitmap>> specsList) {
+		if (variant.isRecycled()) return null;
+
+		int targetWidth = ImageSpecs.getTargetWidth(specsList);
+		int targetHeight = ImageSpecs.getTargetHeight(specsList);
+
+		float scale = 0f;
+		if (targetWidth > 0) scale = Math.max(scale, (float) targetWidth / variant.getWidth());
+		if (targetHeight > 0) scale = Math.max(scale, (float) targetHeight / variant.getHeight());
+		if (scale <= 0f || scale > 1f) scale = 1f;
+
+		int width = Math.max(1, Math.round(variant.getWidth() * scale));
+		int height = Math.max(1, Math.round(variant.getHeight() * scale));
+		Bitmap.Config config = variant.getConfig() == null ? Bitmap.Config.ARGB_8888 : variant.getConfig();
+
+		try {
+			// Always drawing into new bitmap, so that cached bitmaps are never shared between several keys. Pooled bitmaps
+			// are not referenced by anyone (see BitmapRefs), so they can be used here as well.
+			Bitmap bitmap = isBitmapReuseSupported() ? mBitmapPool.get(width, height, config) : null;
+			if (bitmap == null) {
+				bitmap = Bitmap.createBitmap(width, height, config);
+			} else {
+				bitmap.eraseColor(Color.TRANSPARENT);
+			}
+
+			Canvas canvas = new Canvas(bitmap);
+			canvas.scale((float) width / variant.getWidth(), (float) height / variant.getHeight());
+			canvas.drawBitmap(variant, 0f, 0f, SCALE_PAINT);
+			mBitmapRefs.track(bitmap);
+			return bitmap;
+		} catch (OutOfMemoryError e) {
+			Log.e(TAG, "Not enough memory to scale an image: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Should be called after bitmap is put to memory cache. Key is not added if bitmap was already evicted.<br/>
+	 * Keys are added and removed under lock, so that key is never added into a set which is removed concurrently.
+	 * Keys are read without locking, see {@link #findMemoryCacheVariant}.
+	 */
+	private void addVariantKey(String key) {
+		String cacheKey = key.substring(0, key.lastIndexOf(MEMORY_KEY_SIZE_SEPARATOR));
+		synchronized (mVariantKeys) {
+			if (mMemoryCache.peek(key) == null) return; // Already evicted, removeVariantKey was called before
+			Set<String> keys = mVariantKeys.get(cacheKey);
+			if (keys == null) {
+				keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				mVariantKeys.put(cacheKey, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	private void removeVariantKey(String key) {
+		String cacheKey = key.substring(0, key.lastIndexOf(MEMORY_KEY_SIZE_SEPARATOR));
+		synchronized (mVariantKeys) {
+			Set<String> keys = mVariantKeys.get(cacheKey);
+			if (keys == null) return;
+			keys.remove(key);
+			if (keys.isEmpty()) mVariantKeys.remove(cacheKey);
+		}
 	}
 
 	@Override
@@ -62,20 +283,36 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 			return null;
 		}
 
-		// BitmapFactory.Options opts = new BitmapFactory.Options();
-		// opts.inSampleSize = 2;
-		// opts.inPreferredConfig = Bitmap.Config.RGB_565;
-		// opts.inDither = true;
-		// bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
-
+		boolean isSafeDecode = ImageSpecs.isSafeDecode(specsList);
 		try {
-			Bitmap bitmap = BitmapFactory.decodeStream(in);
+			int targetWidth = ImageSpecs.getTargetWidth(specsList);
+			int targetHeight = ImageSpecs.getTargetHeight(specsList);
+			int attempt = ImageSpecs.getDecodeAttempt(specsList);
+			Bitmap bitmap = decodeBitmap(in, targetWidth, targetHeight, attempt, isSafeDecode);
+			mBitmapRefs.track(bitmap);
+			if (bitmap != null && attempt > 0) {
+				mDegradedBitmaps.add(bitmap);
+			} else {
+				mDegradedBitmaps.remove(bitmap); // Bitmap object may be reused from the pool
+			}
 			ImageSpecs.setOutOfMemory(specsList, false);
+			ImageSpecs.setDecodeAttempt(specsList, 0);
+			ImageSpecs.setSafeDecode(specsList, false);
+			checkHeapUsage();
 			return bitmap;
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot reset stream after reading image bounds: " + e.getMessage());
+			ImageSpecs.setSafeDecode(specsList, !isSafeDecode); // Image will be decoded again, see onLoadingFailed
+			return null;
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Cannot reuse bitmap to decode an image: " + e.getMessage());
+			ImageSpecs.setSafeDecode(specsList, !isSafeDecode); // Image will be decoded again, see onLoadingFailed
+			return null;
 		} catch (OutOfMemoryError e) {
 			Log.e(TAG, "Not enough memory to load an image: " + e.getMessage());
 			ImageSpecs.setOutOfMemory(specsList, true);
-			mMemoryCache.evictAll();
+			ImageSpecs.setSafeDecode(specsList, false);
+			trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
 			return null;
 		} finally {
 			try {
@@ -85,6 +322,85 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 		}
 	}
 
+	/**
+	 * Image is decoded again from reopened stream in safe mode (see {@link #decodeBitmap}) if stream could not be reset
+	 * after reading image bounds or bitmap could not be reused.<br/>
+	 * Image is decoded again with higher sample size and cheaper config if previous attempt failed with
+	 * OutOfMemoryError.
+	 */
+	@Override
+	protected boolean onLoadingFailed(Collection<ResourceSpecs<Bitmap>> specsList) {
+		if (ImageSpecs.isSafeDecode(specsList)) return true;
+		if (!ImageSpecs.isOutOfMemory(specsList)) return false;
+
+		int attempt = ImageSpecs.getDecodeAttempt(specsList) + 1;
+		if (attempt >= MAX_DECODE_ATTEMPTS) {
+			ImageSpecs.setDecodeAttempt(specsList, 0);
+			return false;
+		}
+
+		ImageSpecs.setDecodeAttempt(specsList, attempt);
+		return true;
+	}
+
+	/**
+	 * Decodes bitmap downsampled to given target size (0 means no downsampling in corresponding dimension).<br/>
+	 * If image is not downsampled it is decoded into the pixels buffer of previously evicted bitmap of the same size,
+	 * if one is found in the pool.<br/>
+	 * Each next attempt (after OutOfMemoryError) doubles sample size and uses RGB_565 config.<br/>
+	 * In safe mode no bitmap is reused and all data read while reading image bounds is kept, so stream can always be
+	 * reset.
+	 *
+	 * @throws IOException              if stream cannot be reset after reading image bounds.
+	 * @throws IllegalArgumentException if bitmap from the pool cannot be reused, the bitmap is returned to the pool.
+	 */
+	private Bitmap decodeBitmap(InputStream in, int targetWidth, int targetHeight, int attempt, boolean isSafe)
+			throws IOException {
+		if (!(in instanceof BufferedInputStream)) in = new BufferedInputStream(in); // Disk cache streams are buffered already
+
+		// Reading image bounds to choose sample size and bitmap to reuse
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		in.mark(isSafe ? Integer.MAX_VALUE : DECODE_MARK_LIMIT);
+		BitmapFactory.decodeStream(in, null, opts);
+		in.reset();
+
+		opts.inJustDecodeBounds = false;
+		opts.inSampleSize = calculateSampleSize(opts.outWidth, opts.outHeight, targetWidth, targetHeight) << attempt;
+		opts.inPreferredConfig = attempt == 0 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+		opts.inDither = attempt > 0;
+
+		if (isBitmapReuseSupported()) {
+			opts.inMutable = true; // Only mutable bitmaps can be reused later
+			if (!isSafe && opts.inSampleSize == 1 && isReusableFormat(opts.outMimeType)) {
+				opts.inBitmap = mBitmapPool.get(opts.outWidth, opts.outHeight, opts.inPreferredConfig);
+			}
+		}
+
+		Bitmap bitmap = null;
+		try {
+			bitmap = BitmapFactory.decodeStream(in, null, opts);
+			return bitmap;
+		} finally {
+			// Bitmap from the pool is not used if decoding failed (e.g. it cannot be reused), so it is still free
+			if (bitmap == null && opts.inBitmap != null) mBitmapPool.put(opts.inBitmap);
+		}
+	}
+
+	/**
+	 * @return The largest power of 2 sample size which keeps image not smaller than target size.
+	 */
+	private static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		if (width <= 0 || height <= 0 || (targetWidth <= 0 && targetHeight <= 0)) return 1;
+
+		int sampleSize = 1;
+		while ((targetWidth <= 0 || width / (sampleSize * 2) >= targetWidth)
+				&& (targetHeight <= 0 || height / (sampleSize * 2) >= targetHeight)) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
 	/**
 	 * Loads image using given specs object
 	 * 
@@ -94,6 +410,16 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 		loadResource(specs);
 	}
 
+	/**
+	 * Loads image into memory and disk caches with low priority, so it will be loaded only after images requested for
+	 * views.
+	 */
+	public void prefetchImage(String uri) {
+		ImageSpecs specs = new ImageSpecs(uri);
+		specs.setPriority(ImageSpecs.PRIORITY_PREFETCH);
+		loadResource(specs);
+	}
+
     /**
      * Loads image into given <code>view</code>.
      */
@@ -142,6 +468,7 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 		view.setImageDrawable(null);
 
 		ImageSpecs specs = ImageSpecs.getImageSpecsFromView(view, uri);
+		specs.releaseDisplayedBitmap(); // View does not display previous image anymore
 		specs.setImageView(view);
 		specs.setProgressView(progressView);
 		if (useDelay) specs.setDelay(300);
@@ -155,6 +482,33 @@ public class ImagesLoader extends ResourcesLoader<Bitmap> {
 		}
 	}
 
+	private class MemoryCallbacks implements ComponentCallbacks2 {
+		@Override
+		public void onTrimMemory(int level) {
+			trimMemory(level);
+		}
+
+		@Override
+		public void onLowMemory() {
+			trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	}
+
+	private static boolean isBitmapReuseSupported() {
+		return Build.VERSION.SDK_INT >= 11;
+	}
+
+	/**
+	 * Prior to API 19 only JPEG and PNG images can be decoded into reused bitmap.
+	 */
+	private static boolean isReusableFormat(String mimeType) {
+		return Build.VERSION.SDK_INT >= 19 || "image/jpeg".equals(mimeType) || "image/png".equals(mimeType);
+	}
+
 	private static boolean hasAlphaAnimationProblems() {
 		return Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT <= 15;
 	}
@@ -0,0 +1,118 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps which can be reused by decoder through {@code BitmapFactory.Options.inBitmap}.<br/>
+ * <br/>
+ * Bitmaps are grouped into buckets by width, height and config, since prior to API 19 decoder can only reuse bitmap of
+ * exactly same size. Pool has its own size limit (in bytes), least recently used buckets are evicted first.
+ */
+public class BitmapPool {
+
+    private final LinkedHashMap<Long, ArrayDeque<Bitmap>> mBuckets = new LinkedHashMap<Long, ArrayDeque<Bitmap>>(16, 0.75f, true);
+    private final int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds bitmap to the pool. Only mutable bitmaps which were not recycled are accepted.
+     *
+     * @return true if bitmap was added to the pool.
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) return false;
+
+        int size = sizeOf(bitmap);
+        if (size > mMaxSize) return false;
+
+        synchronized (this) {
+            Long key = toKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<Bitmap>();
+                mBuckets.put(key, bucket);
+            }
+            bucket.addLast(bitmap);
+            mSize += size;
+        }
+
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Removes from the pool and returns bitmap of given size and config.
+     *
+     * @return Bitmap to reuse or {@code null} if no matching bitmaps are found.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(toKey(width, height, config));
+        Bitmap bitmap = bucket == null ? null : bucket.pollLast();
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        if (bucket.isEmpty()) mBuckets.remove(toKey(width, height, config));
+        mSize -= sizeOf(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Removes eldest bitmaps until the total size of remaining bitmaps is at or below the requested size.<br/>
+     * Removed bitmaps are not recycled, since they still may be referenced by someone else.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Long, ArrayDeque<Bitmap>>> iterator = mBuckets.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            ArrayDeque<Bitmap> bucket = iterator.next().getValue();
+            while (mSize > maxSize && !bucket.isEmpty()) {
+                mSize -= sizeOf(bucket.pollFirst());
+            }
+            if (bucket.isEmpty()) iterator.remove();
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static Long toKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+}
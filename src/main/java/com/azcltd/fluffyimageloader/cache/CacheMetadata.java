@@ -0,0 +1,49 @@
+package com.azcltd.fluffyimageloader.cache;
+
+/**
+ * Validators and expiration time of cached resource, used to revalidate expired resource with conditional request
+ * instead of downloading it again.
+ */
+public class CacheMetadata {
+
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    private final String mETag;
+    private final String mLastModified;
+    private final long mExpires;
+
+    /**
+     * @param eTag         Value of ETag response header, may be null.
+     * @param lastModified Value of Last-Modified response header, may be null.
+     * @param expires      Time (in milliseconds) after which resource should be revalidated or {@link #NEVER_EXPIRES}.
+     */
+    public CacheMetadata(String eTag, String lastModified, long expires) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpires = expires;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public long getExpires() {
+        return mExpires;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= mExpires;
+    }
+
+    /**
+     * @return Whether resource can be revalidated with conditional request.
+     */
+    public boolean hasValidators() {
+        return mETag != null || mLastModified != null;
+    }
+
+}
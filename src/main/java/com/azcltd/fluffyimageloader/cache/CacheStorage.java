@@ -0,0 +1,133 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Keeps track of disk cache location.<br/>
+ * <br/>
+ * Cache directory is resolved once and then resolved again only after external storage state was changed (media
+ * mount / unmount broadcasts) or cache directory was found to be not accessible. External storage is preferred,
+ * internal storage is used while external storage is not available. Each storage has its own max cache size.
+ */
+class CacheStorage {
+
+    private static final String TAG = "CacheStorage";
+
+    private final Context mAppContext;
+    private final int mMaxExternalSize;
+    private final int mMaxInternalSize;
+    private final OnLocationChangedListener mListener;
+
+    private volatile Location mLocation;
+    private volatile boolean mIsStale;
+
+    CacheStorage(Context appContext, int maxExternalSize, int maxInternalSize, OnLocationChangedListener listener) {
+        mAppContext = appContext;
+        mMaxExternalSize = maxExternalSize;
+        mMaxInternalSize = maxInternalSize;
+        mListener = listener;
+
+        mLocation = resolveLocation();
+        registerStorageReceiver();
+    }
+
+    /**
+     * Returns current cache location. Location is resolved again here if external storage state was changed since
+     * last call, so this method may touch file system and should not be called from main thread.
+     */
+    Location getLocation() {
+        if (mIsStale) refresh();
+        return mLocation;
+    }
+
+    /**
+     * Marks current location as stale, so it will be resolved again on next access. Should be called when cache
+     * directory is found to be not accessible.
+     */
+    void invalidate() {
+        mIsStale = true;
+    }
+
+    private void refresh() {
+        Location location;
+        Location previous;
+        synchronized (this) {
+            if (!mIsStale) return;
+            mIsStale = false;
+            location = resolveLocation();
+            previous = mLocation;
+            mLocation = location;
+        }
+        if (!location.dir.equals(previous.dir)) {
+            mListener.onLocationChanged(location);
+        }
+    }
+
+    private Location resolveLocation() {
+        File externalDir = DiskUtils.getExternalCacheDir(mAppContext);
+        if (externalDir != null && (externalDir.isDirectory() || externalDir.mkdirs())) {
+            return new Location(externalDir, mMaxExternalSize, true);
+        }
+
+        File internalDir = DiskUtils.getInternalCacheDir(mAppContext);
+        internalDir.mkdirs();
+        return new Location(internalDir, mMaxInternalSize, false);
+    }
+
+    private void registerStorageReceiver() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_SHARED);
+        filter.addDataScheme("file"); // Media broadcasts are only delivered to filters with data scheme
+
+        try {
+            mAppContext.registerReceiver(new StorageStateReceiver(), filter);
+        } catch (RuntimeException e) {
+            // Location will be resolved again only when cache directory is not accessible
+            Log.e(TAG, "Cannot listen to external storage state changes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cache directory along with its max size.
+     */
+    static class Location {
+        final File dir;
+        final int maxSize;
+        final boolean isExternal;
+        final DiskIndex index;
+
+        Location(File dir, int maxSize, boolean isExternal) {
+            this.dir = dir;
+            this.maxSize = maxSize;
+            this.isExternal = isExternal;
+            this.index = DiskIndex.get(dir);
+        }
+    }
+
+    interface OnLocationChangedListener {
+        /**
+         * Called on the thread which first accessed location after it was changed.
+         */
+        void onLocationChanged(Location location);
+    }
+
+    private class StorageStateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Called on main thread, so actual location will be resolved on next access from background thread
+            mIsStale = true;
+        }
+    }
+
+}
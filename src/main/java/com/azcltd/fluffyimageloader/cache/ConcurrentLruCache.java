@@ -0,0 +1,481 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent version of {@link LruCache} with the same {@link #sizeOf}, {@link #entryRemoved} and {@link #create}
+ * contract.<br/>
+ * <br/>
+ * Values are stored in {@link ConcurrentHashMap}, so cache hits never take a lock. Instead of reordering LRU list on
+ * each read, accesses are recorded into per-thread striped buffers and replayed in batches by the thread which holds
+ * eviction lock (writers always do it, readers only try to do it once buffer is filled). If buffer is full then access
+ * is dropped, so under heavy contention eviction order is a close approximation of strict LRU order.
+ */
+public class ConcurrentLruCache<K, V> {
+
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    /** Sentinel of the LRU list, {@code head.next} is eldest entry. Guarded by {@link #evictionLock}. */
+    private final Node<K, V> head = new Node<K, V>(null, null, 0);
+
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final int readBuffersMask;
+
+    /** Size of this cache in units. Not necessarily the number of elements. Written under {@link #evictionLock}. */
+    private volatile int size;
+    private final int maxSize;
+
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger createCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) stripes <<= 1;
+
+        this.map = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, stripes);
+        this.readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+        for (int i = 0; i < stripes; i++) readBuffers[i] = new ReadBuffer<K, V>();
+        this.readBuffersMask = stripes - 1;
+
+        head.prev = head;
+        head.next = head;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of the queue. This returns null if a value is not cached and cannot
+     * be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            hitCount.incrementAndGet();
+            afterRead(node);
+            return node.value;
+        }
+        missCount.incrementAndGet();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        Node<K, V> created = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+        Node<K, V> existing;
+        evictionLock.lock();
+        try {
+            createCount.incrementAndGet();
+            drainReadBuffers();
+            existing = map.putIfAbsent(key, created);
+            if (existing == null) {
+                linkLast(created);
+                size += created.size;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (existing != null) {
+            entryRemoved(false, key, createdValue, existing.value);
+            return existing.value;
+        } else {
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. Unlike
+     * {@link #get}, the value is not moved in the queue and hit and miss counts
+     * are not updated.
+     */
+    public final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> node = map.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * the queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
+            putCount.incrementAndGet();
+            drainReadBuffers();
+            previous = map.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+                size -= previous.size;
+            }
+            linkLast(node);
+            size += node.size;
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or
+     * below the requested size. All entries are evicted in a single batch under
+     * eviction lock and {@link #entryRemoved} is called after the lock is released.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        List<Node<K, V>> evicted = null;
+
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            while (true) {
+                if (size < 0 || (map.isEmpty() && size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (size <= maxSize || map.isEmpty()) {
+                    break;
+                }
+
+                Node<K, V> toEvict = head.next;
+                map.remove(toEvict.key);
+                unlink(toEvict);
+                size -= toEvict.size;
+                evictionCount.incrementAndGet();
+
+                if (evicted == null) evicted = new ArrayList<Node<K, V>>();
+                evicted.add(toEvict);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (evicted != null) {
+            for (Node<K, V> node : evicted) {
+                entryRemoved(true, node.key, node.value, null);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> previous;
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            previous = map.remove(key);
+            if (previous != null) {
+                unlink(previous);
+                size -= previous.size;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        return createCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public final Map<K, V> snapshot() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Map<K, V> snapshot = new LinkedHashMap<K, V>();
+            for (Node<K, V> node = head.next; node != head; node = node.next) {
+                snapshot.put(node.key, node.value);
+            }
+            return snapshot;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount.get();
+        int accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    /**
+     * Records access to given node and replays recorded accesses if buffer is filled enough and eviction lock is free.
+     * Never blocks.
+     */
+    private void afterRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & readBuffersMask];
+        if (buffer.record(node) >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves all recorded accesses into LRU list. Should be called under {@link #evictionLock}.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            long read = buffer.readCount;
+            long written = buffer.writeCount.get();
+            for (; read < written; read++) {
+                int index = (int) (read & READ_BUFFER_MASK);
+                Node<K, V> node = buffer.slots.get(index);
+                if (node == null) break; // Slot is reserved but node is not published yet
+                buffer.slots.lazySet(index, null);
+                if (node.prev != null) {
+                    // Node is still in the cache, moving it to the end of LRU list
+                    unlink(node);
+                    linkLast(node);
+                }
+            }
+            buffer.readCount = read;
+        }
+    }
+
+    private void linkLast(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        /** Links of LRU list, guarded by eviction lock. Both are {@code null} if node is no longer in the cache. */
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Lossy ring buffer of recorded accesses. Written by any thread, read only under eviction lock.
+     */
+    private static final class ReadBuffer<K, V> {
+        final AtomicLong writeCount = new AtomicLong();
+        final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+        /** Written only under eviction lock. */
+        volatile long readCount;
+
+        /**
+         * @return Number of pending (not yet replayed) accesses in this buffer.
+         */
+        int record(Node<K, V> node) {
+            long written = writeCount.get();
+            long pending = written - readCount;
+            if (pending >= READ_BUFFER_SIZE) return (int) pending; // Buffer is full, access is dropped
+
+            if (writeCount.compareAndSet(written, written + 1)) {
+                slots.lazySet((int) (written & READ_BUFFER_MASK), node);
+                pending++;
+            }
+            return (int) pending;
+        }
+    }
+
+}
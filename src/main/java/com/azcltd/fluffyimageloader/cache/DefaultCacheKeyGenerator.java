@@ -1,20 +1,41 @@
 package com.azcltd.fluffyimageloader.cache;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-
+/**
+ * Generates keys as 16 hex chars of 64-bit hash of the whole uri. Keys are safe to use as file names.
+ */
 public class DefaultCacheKeyGenerator implements ICacheKeyGenerator {
 
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
     @Override
     public String toCacheKey(String uri) {
         if (uri == null) return null;
-        try {
-            String lastPart = uri.substring(uri.lastIndexOf("/") + 1);
-            String name = uri.hashCode() + '-' + URLEncoder.encode(lastPart, "UTF-8");
-            return name.replace('%', '_'); // To use in other Uri (avoid encoding)
-        } catch (UnsupportedEncodingException e) {
-            return null;
+
+        long hash = hash64(uri);
+        char[] chars = new char[16];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = HEX_CHARS[(int) (hash & 0xF)];
+            hash >>>= 4;
         }
+        return new String(chars);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of string's chars followed by MurmurHash3 finalization step to spread hash bits.
+     */
+    static long hash64(String str) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = str.length(); i < length; i++) {
+            hash ^= str.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
     }
 
 }
@@ -1,23 +1,151 @@
 package com.azcltd.fluffyimageloader.cache;
 
 import android.content.Context;
+import android.util.Log;
 
-import java.io.*;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Disk cache of loaded resources.<br/>
+ * <br/>
+ * Resources are written into temporary files which are atomically renamed into place once fully written, so readers
+ * never see partially written files. Concurrent saves of the same key (even from different instances sharing same
+ * cache directory) are collapsed into a single write. Resource can also be written gradually with {@link Editor}, see
+ * {@link #edit(String)}.<br/>
+ * <br/>
+ * Cache size is maintained by low priority background thread: once cache size exceeds max size least recently used
+ * files are removed until cache size drops to {@link #TRIM_TO_SIZE_RATIO} of max size.<br/>
+ * <br/>
+ * Files are stored in several levels of hashed subdirectories (see {@link DiskUtils#getCacheFileForName(File, String,
+ * int)}) to keep directories small. Files stored directly in cache directory by older versions are moved into
+ * subdirectories in background.<br/>
+ * <br/>
+ * Index of cached files (see {@link DiskIndex}) is loaded in background right after creation, once it is loaded
+ * lookups of missing files do not touch file system.<br/>
+ * <br/>
+ * Cache directory is resolved once and tracked by {@link CacheStorage}, external storage is used when it is
+ * available, otherwise cache is switched to internal storage with its own max size.
+ */
 public class DiskCache {
 
-    private static final int BUFFER_SIZE = 2048;
+    public static final int DEFAULT_SHARD_LEVELS = 2;
 
-    private Context mAppContext;
-    private int mMaxExternalDiskUsage;
-    private int mMaxInternalDiskUsage;
+    private static final String TAG = "DiskCache";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final String TEMP_FILE_PREFIX = "save";
+    private static final String TEMP_FILE_SUFFIX = ".fluffy-tmp";
+    private static final float TRIM_TO_SIZE_RATIO = 0.9f;
+    private static final int TRIM_BATCH_SIZE = 32;
+    private static final int FILE_LOCKS_COUNT = 32;
+
+    /**
+     * Reusable write buffers. Heap buffers are used since data is read from streams into arrays anyway, direct buffers
+     * would only add another copy.
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> sBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** Writes in progress by target file path */
+    private static final ConcurrentHashMap<String, PendingWrite> sPendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+
+    /**
+     * Striped locks guarding publishing and deletion of cache files together with corresponding index entries, see
+     * {@link #getFileLock(File)}.
+     */
+    private static final Object[] sFileLocks = new Object[FILE_LOCKS_COUNT];
+
+    static {
+        for (int i = 0; i < FILE_LOCKS_COUNT; i++) sFileLocks[i] = new Object();
+    }
+
+    private static final ExecutorService sMaintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DiskCacheMaintenance");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicBoolean mIsTrimScheduled = new AtomicBoolean();
+
+    private final Context mAppContext;
+    private final CacheStorage mStorage;
+    private final int mShardLevels;
+    private volatile SyncPolicy mSyncPolicy = SyncPolicy.NONE;
+    /** Number of scheduled but not yet finished moves of files into subdirectories */
+    private final AtomicInteger mPendingMigrations = new AtomicInteger();
 
     public DiskCache(Context appContext, int maxExternalCacheSize, int maxInternalCacheSize) {
+        this(appContext, maxExternalCacheSize, maxInternalCacheSize, DEFAULT_SHARD_LEVELS);
+    }
+
+    /**
+     * @param shardLevels
+     *            Number of levels of subdirectories (16 subdirectories on each level) to spread cached files
+     *            over. 0 means that all files will be stored directly in cache directory.
+     */
+    public DiskCache(Context appContext, int maxExternalCacheSize, int maxInternalCacheSize, int shardLevels) {
+        if (shardLevels < 0 || shardLevels > DiskUtils.MAX_SHARD_LEVELS)
+            throw new IllegalArgumentException("shardLevels should be within [0, " + DiskUtils.MAX_SHARD_LEVELS + "]");
+
         mAppContext = appContext;
-        mMaxExternalDiskUsage = maxExternalCacheSize;
-        mMaxInternalDiskUsage = maxInternalCacheSize;
+        mShardLevels = shardLevels;
+        mStorage = new CacheStorage(appContext, maxExternalCacheSize, maxInternalCacheSize,
+                new CacheStorage.OnLocationChangedListener() {
+                    @Override
+                    public void onLocationChanged(CacheStorage.Location location) {
+                        prepareLocation(location);
+                        scheduleTrim();
+                    }
+                });
+
+        prepareLocation(mStorage.getLocation());
+    }
+
+    /**
+     * Prepares newly used cache location: loads its index and moves files stored by older versions into
+     * subdirectories.
+     */
+    private void prepareLocation(CacheStorage.Location location) {
+        DiskUtils.createNomediaFile(mAppContext, location.dir, location.isExternal);
 
-        DiskUtils.createNomediaFile(appContext, DiskUtils.getCacheDir(appContext));
+        sMaintenanceExecutor.execute(new IndexLoadingTask(location.index));
+        if (mShardLevels > 0) {
+            mPendingMigrations.incrementAndGet();
+            sMaintenanceExecutor.execute(new MigrationTask());
+        }
+    }
+
+    /**
+     * Sets whether written files should be flushed to the storage device before they become visible in the cache.
+     * Default policy is {@link SyncPolicy#NONE}.
+     */
+    public void setSyncPolicy(SyncPolicy policy) {
+        mSyncPolicy = policy == null ? SyncPolicy.NONE : policy;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
     }
 
     /**
@@ -27,67 +155,489 @@ public class DiskCache {
      *            InputStream to save on disk. Will be closed at the end.
      */
     public boolean save(String key, InputStream in) {
+        return save(key, in, null);
+    }
+
+    /**
+     * Same as {@link #save(String, InputStream)} but also stores given metadata along with the resource.
+     *
+     * @param metadata Resource metadata, may be null.
+     */
+    public boolean save(String key, InputStream in, CacheMetadata metadata) {
         if (in == null) return false;
 
-        OutputStream out = null;
-        File file = null;
+        CacheStorage.Location location = mStorage.getLocation();
+        File file;
         try {
-            file = DiskUtils.getCacheFileForName(mAppContext, key);
-            file.getParentFile().mkdirs();
-            out = new FileOutputStream(file);
-            // Copying in to out
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int c;
-            while ((c = in.read(buffer)) != -1) {
-                out.write(buffer, 0, c);
+            file = getFile(location.dir, key);
+        } catch (FileNotFoundException e) {
+            closeSilently(in);
+            return false;
+        }
+
+        PendingWrite write = new PendingWrite();
+        PendingWrite existing = sPendingWrites.putIfAbsent(file.getAbsolutePath(), write);
+        if (existing != null) {
+            // Same resource is being saved right now, waiting for that write instead of writing it once again
+            closeSilently(in);
+            return existing.await() && file.exists();
+        }
+
+        Editor editor = createEditor(location, key, file, write);
+        if (editor == null) {
+            closeSilently(in);
+            return false;
+        }
+
+        try {
+            if (in instanceof FileInputStream) {
+                transfer(((FileInputStream) in).getChannel(), editor.getChannel());
+            } else {
+                copy(in, editor.getChannel());
             }
-        } catch (Throwable e) {
-            if(file != null) file.delete();
+            editor.setMetadata(metadata);
+            return editor.commit();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save file into disk cache", e);
+            return false;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot save file into disk cache", e);
             return false;
         } finally {
-            if (in != null) try {
-                in.close();
-            } catch (IOException e) {
+            editor.abort(); // Does nothing if editor is committed, otherwise releases waiters even if an Error is thrown
+            closeSilently(in);
+        }
+    }
+
+    /**
+     * Copies given stream into given channel through pooled buffer, so that data is written in large chunks.
+     */
+    private static void copy(InputStream in, FileChannel out) throws IOException {
+        ByteBuffer buffer = sBufferPool.poll();
+        if (buffer == null) buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+        try {
+            byte[] array = buffer.array();
+            int c;
+            while ((c = in.read(array, buffer.position(), buffer.remaining())) != -1) {
+                buffer.position(buffer.position() + c);
+                if (!buffer.hasRemaining()) write(buffer, out);
             }
-            if (out != null) try {
-                out.close();
-            } catch (IOException e) {
+            write(buffer, out);
+        } finally {
+            buffer.clear();
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) sBufferPool.offer(buffer);
+        }
+    }
+
+    private static void write(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Copies the rest of given file channel into another channel without copying data through user space buffers
+     * (where supported).
+     */
+    private static void transfer(FileChannel in, FileChannel out) throws IOException {
+        long position = 0L;
+        long count = in.size() - in.position();
+        while (position < count) {
+            long transferred = out.transferFrom(in, position, count - position);
+            if (transferred <= 0) break; // Source file was truncated
+            position += transferred;
+        }
+    }
+
+    /**
+     * Starts saving of the resource with given key. Resource becomes available in the cache only after
+     * {@link Editor#commit()} is called, either {@link Editor#commit()} or {@link Editor#abort()} should be called
+     * eventually.
+     *
+     * @return Editor or {@code null} if same resource is being saved right now or it cannot be saved.
+     */
+    public Editor edit(String key) {
+        CacheStorage.Location location = mStorage.getLocation();
+        File file;
+        try {
+            file = getFile(location.dir, key);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        PendingWrite write = new PendingWrite();
+        if (sPendingWrites.putIfAbsent(file.getAbsolutePath(), write) != null) return null;
+        return createEditor(location, key, file, write);
+    }
+
+    /**
+     * Creates editor writing into temporary file in the same directory as given file. Given pending write is finished
+     * if editor cannot be created.
+     */
+    private Editor createEditor(CacheStorage.Location location, String key, File file, PendingWrite write) {
+        File tmpFile = null;
+        try {
+            file.getParentFile().mkdirs();
+            tmpFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, file.getParentFile());
+            return new Editor(location, key, file, tmpFile, write);
+        } catch (IOException e) {
+            if (tmpFile != null) tmpFile.delete();
+            finishWrite(location, file, write, false);
+            return null;
+        }
+    }
+
+    private void finishWrite(CacheStorage.Location location, File file, PendingWrite write, boolean isSaved) {
+        sPendingWrites.remove(file.getAbsolutePath(), write);
+        write.finish(isSaved);
+        // Storage may be not accessible anymore, otherwise source stream failed or was cancelled
+        if (!isSaved && !location.dir.isDirectory()) mStorage.invalidate();
+    }
+
+    /**
+     * Schedules cache trimming on background thread. Does nothing if trimming is already scheduled.
+     */
+    private void scheduleTrim() {
+        if (mIsTrimScheduled.compareAndSet(false, true)) sMaintenanceExecutor.execute(new TrimTask());
+    }
+
+    /**
+     * Removes least recently used files (in batches) if total size of cached files exceeds max cache size.
+     */
+    private void keepWithinSize() {
+        // Size is taken from the same location as directory, so wrong budget cannot be applied
+        CacheStorage.Location location = mStorage.getLocation();
+        File dir = location.dir;
+
+        DiskIndex index = location.index;
+        if (index.size() <= location.maxSize) return;
+
+        long trimToSize = (long) (location.maxSize * TRIM_TO_SIZE_RATIO);
+        List<String> keys;
+        while (!(keys = index.trimToSize(trimToSize, TRIM_BATCH_SIZE)).isEmpty()) {
+            for (String key : keys) {
+                try {
+                    File file = getFile(dir, key);
+                    synchronized (getFileLock(file)) {
+                        // Same key may be saved again since it was removed from the index
+                        if (!index.mightContain(key)) file.delete();
+                    }
+                } catch (FileNotFoundException ignored) {
+                }
             }
         }
-        DiskUtils.keepCacheDirWithinSize(mAppContext, mMaxInternalDiskUsage, mMaxExternalDiskUsage);
-        return file.exists(); // may be cleaned while keepDirWithinSize
+    }
+
+    /**
+     * Returns lock which should be held while file is published or deleted along with updating of its index entry, so
+     * that index never points to deleted file.
+     */
+    private static Object getFileLock(File file) {
+        return sFileLocks[(file.getAbsolutePath().hashCode() & 0x7FFFFFFF) % FILE_LOCKS_COUNT];
+    }
+
+    /**
+     * Moves files stored directly in cache directory (by older versions) into hashed subdirectories.
+     */
+    private void migrateFlatLayout() throws FileNotFoundException {
+        File dir = mStorage.getLocation().dir;
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || DiskIndex.isServiceFile(name)) continue;
+
+            File target = getFile(dir, name);
+            if (isTempFile(name) || target.exists()) {
+                file.delete();
+            } else {
+                target.getParentFile().mkdirs();
+                if (!file.renameTo(target)) file.delete();
+            }
+        }
+    }
+
+    private File getFile(File dir, String key) throws FileNotFoundException {
+        return DiskUtils.getCacheFileForName(dir, key, mShardLevels);
     }
 
     public void delete(String key) {
         try {
-            DiskUtils.getCacheFileForName(mAppContext, key).delete();
+            CacheStorage.Location location = mStorage.getLocation();
+            File file = getFile(location.dir, key);
+            synchronized (getFileLock(file)) {
+                file.delete();
+                if (mPendingMigrations.get() > 0) new File(location.dir, key).delete();
+                location.index.remove(key);
+            }
         } catch (FileNotFoundException e) {
             // Not in the cache
         }
     }
 
+    /**
+     * @return Metadata stored along with the resource or {@code null} if there is no such resource or it has no
+     *         metadata.
+     */
+    public CacheMetadata getMetadata(String key) {
+        if (key == null) return null;
+        return mStorage.getLocation().index.getMetadata(key);
+    }
+
+    /**
+     * Replaces metadata of cached resource (e.g. once resource was revalidated). Does nothing if there is no such
+     * resource.
+     */
+    public void setMetadata(String key, CacheMetadata metadata) {
+        if (key == null) return;
+        mStorage.getLocation().index.setMetadata(key, metadata);
+    }
+
     public boolean isExists(String key) {
-        return getPath(key) != null;
+        return getCachedFile(mStorage.getLocation(), key) != null;
     }
 
     /**
-     * @return Path for cached file
+     * Returns uri of cached file and marks it as recently used, so that least recently read files are evicted first.
+     *
+     * @return Uri for cached file
      */
     public String get(String key) {
-        return DiskUtils.toUri(getPath(key));
+        CacheStorage.Location location = mStorage.getLocation();
+        File file = getCachedFile(location, key);
+        if (file == null) return null;
+        location.index.recordAccess(key);
+        return DiskUtils.toUri(file.getAbsolutePath());
     }
 
-    private String getPath(String key) {
+    /**
+     * Opens cached file for reading and marks it as recently used, so that least recently read files are evicted
+     * first.
+     *
+     * @return Buffered stream of cached file or {@code null} if there is no cached file for given key.
+     */
+    public InputStream open(String key) {
+        CacheStorage.Location location = mStorage.getLocation();
+        if (key == null || !location.index.mightContain(key)) return null;
+
+        FileInputStream in;
         try {
-            File file = DiskUtils.getCacheFileForName(mAppContext, key);
-            return file.exists() ? file.getAbsolutePath() : null;
+            // Opening file right away instead of checking its existence first
+            in = new FileInputStream(getFile(location.dir, key));
+        } catch (FileNotFoundException e) {
+            if (mPendingMigrations.get() == 0) return null;
+            try {
+                // File may still be not moved into subdirectory
+                in = new FileInputStream(new File(location.dir, key));
+            } catch (FileNotFoundException e2) {
+                return null;
+            }
+        }
+
+        location.index.recordAccess(key);
+        return new BufferedInputStream(in, READ_BUFFER_SIZE);
+    }
+
+    private File getCachedFile(CacheStorage.Location location, String key) {
+        if (key == null || !location.index.mightContain(key)) return null;
+        try {
+            File dir = location.dir;
+            File file = getFile(dir, key);
+            if (file.exists()) return file;
+
+            if (mPendingMigrations.get() > 0) {
+                // File may still be not moved into subdirectory
+                File flatFile = new File(dir, key);
+                if (flatFile.exists()) return flatFile;
+            }
+            return null;
         } catch (FileNotFoundException e) {
             return null;
         }
     }
 
     public void clean() {
-        DiskUtils.cleanDir(DiskUtils.getCacheDir(mAppContext));
+        CacheStorage.Location location = mStorage.getLocation();
+        DiskUtils.cleanDir(location.dir);
+        location.index.clear();
+    }
+
+    static boolean isTempFile(String name) {
+        return name.endsWith(TEMP_FILE_SUFFIX);
+    }
+
+    private static void closeSilently(Closeable closeable) {
+        if (closeable != null) try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private class TrimTask implements Runnable {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+            mIsTrimScheduled.set(false); // Following save requests will schedule another trimming
+            try {
+                keepWithinSize();
+            } catch (Throwable e) {
+                Log.e(TAG, "Cannot trim disk cache", e);
+            }
+        }
+    }
+
+    private static class IndexLoadingTask implements Runnable {
+        private final DiskIndex mIndex;
+
+        IndexLoadingTask(DiskIndex index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                mIndex.load();
+            } catch (Throwable e) {
+                Log.e(TAG, "Cannot load disk cache index", e);
+            }
+        }
+    }
+
+    private class MigrationTask implements Runnable {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+            try {
+                migrateFlatLayout();
+            } catch (Throwable e) {
+                Log.e(TAG, "Cannot move cached files into subdirectories", e);
+            } finally {
+                mPendingMigrations.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Writes resource into temporary file which is atomically renamed into place on {@link #commit()}.
+     */
+    public class Editor {
+        private final CacheStorage.Location mLocation;
+        private final String mKey;
+        private final File mFile;
+        private final File mTmpFile;
+        private final PendingWrite mWrite;
+        private final FileOutputStream mOut;
+        private CacheMetadata mMetadata;
+        private boolean mIsFinished;
+
+        private Editor(CacheStorage.Location location, String key, File file, File tmpFile, PendingWrite write)
+                throws FileNotFoundException {
+            mLocation = location;
+            mKey = key;
+            mFile = file;
+            mTmpFile = tmpFile;
+            mWrite = write;
+            mOut = new FileOutputStream(tmpFile);
+        }
+
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        FileChannel getChannel() {
+            return mOut.getChannel();
+        }
+
+        /**
+         * Sets metadata which will be stored along with the resource on {@link #commit()}.
+         */
+        public void setMetadata(CacheMetadata metadata) {
+            mMetadata = metadata;
+        }
+
+        /**
+         * Publishes written resource in the cache.
+         *
+         * @return false if resource cannot be saved, editor is aborted in this case.
+         */
+        public boolean commit() {
+            if (mIsFinished) return false;
+            mIsFinished = true;
+
+            try {
+                SyncPolicy policy = mSyncPolicy;
+                if (policy != SyncPolicy.NONE) mOut.getChannel().force(policy == SyncPolicy.DATA_AND_METADATA);
+                mOut.close();
+                synchronized (getFileLock(mFile)) {
+                    if (!mTmpFile.renameTo(mFile)) {
+                        // Some file systems cannot replace existing file
+                        mFile.delete();
+                        if (!mTmpFile.renameTo(mFile))
+                            throw new IOException("Cannot rename " + mTmpFile + " to " + mFile);
+                    }
+                    // Index is updated before waiters of this write are notified, so they can find the file
+                    mLocation.index.put(mKey, mFile.length(), mMetadata);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot save file into disk cache: " + e.getMessage());
+                mTmpFile.delete();
+                finishWrite(mLocation, mFile, mWrite, false);
+                return false;
+            }
+
+            finishWrite(mLocation, mFile, mWrite, true);
+            scheduleTrim();
+            return true;
+        }
+
+        /**
+         * Discards written data. Does nothing if editor is already committed or aborted.
+         */
+        public void abort() {
+            if (mIsFinished) return;
+            mIsFinished = true;
+
+            closeSilently(mOut);
+            mTmpFile.delete();
+            finishWrite(mLocation, mFile, mWrite, false);
+        }
+    }
+
+    public static enum SyncPolicy {
+        /** Files are not flushed explicitly, data may be lost if device is powered off right after write */
+        NONE,
+        /** File content is flushed before file becomes visible in the cache */
+        DATA,
+        /** Both file content and file metadata are flushed before file becomes visible in the cache */
+        DATA_AND_METADATA
+    }
+
+    private static class PendingWrite {
+        private boolean mIsFinished;
+        private boolean mIsSaved;
+
+        synchronized void finish(boolean isSaved) {
+            mIsFinished = true;
+            mIsSaved = isSaved;
+            notifyAll();
+        }
+
+        /**
+         * @return Whether resource was successfully saved.
+         */
+        synchronized boolean await() {
+            try {
+                while (!mIsFinished) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mIsSaved;
+        }
     }
 
 }
@@ -0,0 +1,523 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of disk cache entries (key -> file size, last access time and optional {@link CacheMetadata}) backed
+ * by append-only journal file stored in cache directory.<br/>
+ * <br/>
+ * Index is loaded from the journal once (or rebuilt from cache directory content if there is no valid journal) and
+ * keeps running total size of all entries, so cache directory can be kept within size without scanning it.<br/>
+ * <br/>
+ * Journal contains one record per line: {@code PUT <size> <time> <key>}, {@code READ <time> <key>},
+ * {@code META <expires> <etag> <last-modified> <key>} or {@code DEL <key>}. Metadata values are escaped, so they
+ * contain no spaces, missing values are written as {@code -}. Keys are escaped the same way, since custom cache key
+ * generators may produce keys with spaces or line breaks. Records are buffered in memory and written to the journal
+ * in batches outside of the index lock, so journal I/O never blocks index lookups. Read records are only written once
+ * enough of them are collected or along with next modification. Journal is compacted once it contains much more records
+ * than there are entries.<br/>
+ * <br/>
+ * Only one index exists for each directory, see {@link #get(File)}.<br/>
+ * <br/>
+ * Once loaded index can also answer whether file for given key may exist without touching file system, see
+ * {@link #mightContain(String)}.
+ */
+class DiskIndex {
+
+    private static final String TAG = "DiskIndex";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "fluffy.DiskIndex 1";
+
+    private static final String RECORD_PUT = "PUT";
+    private static final String RECORD_DEL = "DEL";
+    private static final String RECORD_READ = "READ";
+    private static final String RECORD_META = "META";
+    private static final String NO_VALUE = "-";
+
+    private static final int COMPACT_THRESHOLD = 2000;
+    private static final int READ_FLUSH_THRESHOLD = 32;
+
+    private static final Map<String, DiskIndex> sIndexes = new HashMap<String, DiskIndex>();
+
+    private final File mDir;
+    /**
+     * Entries in access order, so eldest entries come first. Entries are moved to the end explicitly along with
+     * corresponding journal records, so plain lookups do not change the order.
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private long mSize;
+
+    private boolean mIsLoaded;
+    private volatile boolean mIsReady;
+    /** Records which are applied to entries but not written to the journal yet */
+    private final List<String> mPendingRecords = new ArrayList<String>();
+    private boolean mIsRewriteNeeded;
+    private int mJournalRecords;
+    private int mPendingReads;
+
+    /** Guards journal file, should be acquired before index lock if both are needed */
+    private final Object mJournalLock = new Object();
+    private Writer mJournalWriter;
+
+    private DiskIndex(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns index of given cache directory. Index is not loaded until first access.
+     */
+    static DiskIndex get(File dir) {
+        synchronized (sIndexes) {
+            String path = dir.getAbsolutePath();
+            DiskIndex index = sIndexes.get(path);
+            if (index == null) {
+                index = new DiskIndex(dir);
+                sIndexes.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Loads index if it is not loaded yet.
+     */
+    void load() {
+        synchronized (this) {
+            ensureLoaded();
+        }
+        flushJournal();
+    }
+
+    /**
+     * Never blocks and never touches file system.
+     *
+     * @return false if there is definitely no entry for given key, true if entry exists or index is not loaded yet.
+     */
+    boolean mightContain(String key) {
+        if (!mIsReady) return true;
+        synchronized (this) {
+            return mEntries.containsKey(key);
+        }
+    }
+
+    /**
+     * Adds new entry or replaces existing one.
+     *
+     * @param metadata Metadata of the entry, may be null.
+     */
+    void put(String key, long size, CacheMetadata metadata) {
+        synchronized (this) {
+            ensureLoaded();
+            long time = System.currentTimeMillis();
+            Entry entry = new Entry(size, time);
+            entry.metadata = metadata;
+            Entry previous = mEntries.remove(key);
+            mEntries.put(key, entry);
+            if (previous != null) mSize -= previous.size;
+            mSize += size;
+            addRecord(RECORD_PUT + ' ' + size + ' ' + time + ' ' + escape(key));
+            if (metadata != null) addRecord(toMetaRecord(key, metadata));
+        }
+        flushJournal();
+    }
+
+    /**
+     * Never waits for index loading.
+     *
+     * @return Metadata of the entry or {@code null} if there is no such entry, it has no metadata or index is not
+     *         loaded yet.
+     */
+    CacheMetadata getMetadata(String key) {
+        if (!mIsReady) return null;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            return entry == null ? null : entry.metadata;
+        }
+    }
+
+    /**
+     * Replaces metadata of existing entry. Does nothing if there is no such entry.
+     */
+    void setMetadata(String key, CacheMetadata metadata) {
+        synchronized (this) {
+            ensureLoaded();
+            Entry entry = mEntries.get(key);
+            if (entry == null || metadata == null) return;
+            entry.metadata = metadata;
+            addRecord(toMetaRecord(key, metadata));
+        }
+        flushJournal();
+    }
+
+    /**
+     * Marks entry as most recently used. Corresponding journal record is buffered and written along with next
+     * modification or once enough read records are collected.<br/>
+     * Never waits for index loading, accesses made before index is loaded are not recorded.
+     */
+    void recordAccess(String key) {
+        if (!mIsReady) return;
+        synchronized (this) {
+            Entry entry = mEntries.remove(key);
+            if (entry == null) return;
+            mEntries.put(key, entry); // Moving entry to the end of access order
+            entry.time = System.currentTimeMillis();
+            addRecord(RECORD_READ + ' ' + entry.time + ' ' + escape(key));
+            if (++mPendingReads < READ_FLUSH_THRESHOLD) return;
+        }
+        flushJournal();
+    }
+
+    void remove(String key) {
+        synchronized (this) {
+            ensureLoaded();
+            Entry previous = mEntries.remove(key);
+            if (previous == null) return;
+            mSize -= previous.size;
+            addRecord(RECORD_DEL + ' ' + escape(key));
+        }
+        flushJournal();
+    }
+
+    /**
+     * Removes all entries. Should be called after cache directory was cleaned.
+     */
+    void clear() {
+        synchronized (this) {
+            mEntries.clear();
+            mSize = 0L;
+            mIsLoaded = true;
+            mIsReady = true;
+            mPendingRecords.clear();
+            mIsRewriteNeeded = true;
+        }
+        flushJournal();
+    }
+
+    /**
+     * @return Total size of all entries.
+     */
+    synchronized long size() {
+        ensureLoaded();
+        return mSize;
+    }
+
+    /**
+     * Removes least recently used entries until total size of remaining entries is at or below given size, but not
+     * more than {@code maxCount} entries at once.
+     *
+     * @return Keys of removed entries, corresponding files should be deleted by caller.
+     */
+    List<String> trimToSize(long maxSize, int maxCount) {
+        List<String> removed = new ArrayList<String>();
+        synchronized (this) {
+            ensureLoaded();
+            if (mSize <= maxSize) return removed;
+
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mSize > maxSize && removed.size() < maxCount && iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                iterator.remove();
+                mSize -= entry.getValue().size;
+                removed.add(entry.getKey());
+                addRecord(RECORD_DEL + ' ' + escape(entry.getKey()));
+            }
+        }
+        flushJournal();
+        return removed;
+    }
+
+    /**
+     * Journal is rewritten with loaded entries on next {@link #flushJournal()}.
+     */
+    private void ensureLoaded() {
+        if (mIsLoaded) return;
+        mIsLoaded = true;
+
+        if (!readJournal()) rebuildFromDir();
+        mIsRewriteNeeded = true;
+        mIsReady = true;
+    }
+
+    /**
+     * @return false if there is no valid journal.
+     */
+    private boolean readJournal() {
+        File journal = new File(mDir, JOURNAL_FILE);
+        if (!journal.exists()) return false;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+            if (!JOURNAL_HEADER.equals(reader.readLine())) return false;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readRecord(line);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read disk cache journal: " + e.getMessage());
+            mEntries.clear();
+            mSize = 0L;
+            return false;
+        } finally {
+            if (reader != null) try {
+                reader.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void readRecord(String line) {
+        try {
+            if (line.startsWith(RECORD_PUT + ' ')) {
+                String[] parts = line.split(" ", 4); // PUT <size> <time> <key>
+                if (parts.length < 4) return;
+                Entry entry = new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                String key = unescape(parts[3]);
+                Entry previous = mEntries.remove(key);
+                mEntries.put(key, entry);
+                if (previous != null) mSize -= previous.size;
+                mSize += entry.size;
+            } else if (line.startsWith(RECORD_READ + ' ')) {
+                String[] parts = line.split(" ", 3); // READ <time> <key>
+                if (parts.length < 3) return;
+                String key = unescape(parts[2]);
+                Entry entry = mEntries.remove(key);
+                if (entry != null) {
+                    mEntries.put(key, entry); // Moving entry to the end of access order
+                    entry.time = Long.parseLong(parts[1]);
+                }
+            } else if (line.startsWith(RECORD_META + ' ')) {
+                String[] parts = line.split(" ", 5); // META <expires> <etag> <last-modified> <key>
+                if (parts.length < 5) return;
+                Entry entry = mEntries.get(unescape(parts[4]));
+                if (entry != null) {
+                    entry.metadata = new CacheMetadata(unescape(parts[2]), unescape(parts[3]), Long.parseLong(parts[1]));
+                }
+            } else if (line.startsWith(RECORD_DEL + ' ')) {
+                Entry previous = mEntries.remove(unescape(line.substring(RECORD_DEL.length() + 1))); // DEL <key>
+                if (previous != null) mSize -= previous.size;
+            }
+            // Unknown or truncated records are skipped
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    /**
+     * Builds index from cache directory content (including subdirectories) using files modification time as access
+     * time.
+     */
+    private void rebuildFromDir() {
+        mEntries.clear();
+        mSize = 0L;
+
+        List<File> list = new ArrayList<File>();
+        for (File file : DiskUtils.listFilesRecursively(mDir)) {
+            if (DiskCache.isTempFile(file.getName())) {
+                file.delete(); // Leftover of interrupted write
+            } else if (!isServiceFile(file.getName())) {
+                list.add(file);
+            }
+        }
+
+        final Map<File, Long> times = new HashMap<File, Long>();
+        for (File file : list) times.put(file, file.lastModified());
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return times.get(f1).compareTo(times.get(f2));
+            }
+        });
+
+        for (File file : list) {
+            Entry entry = new Entry(file.length(), times.get(file));
+            mEntries.put(file.getName(), entry);
+            mSize += entry.size;
+        }
+    }
+
+    /**
+     * Adds record to the batch which will be written by next {@link #flushJournal()}. Should be called under index lock
+     * after record is applied to entries.
+     */
+    private void addRecord(String record) {
+        mPendingRecords.add(record);
+        mJournalRecords++;
+        if (mJournalRecords > COMPACT_THRESHOLD && mJournalRecords > 2 * mEntries.size()) mIsRewriteNeeded = true;
+    }
+
+    /**
+     * Writes pending records to the journal, or replaces journal with all entries if it should be compacted.<br/>
+     * Should not be called under index lock: records are taken under the lock, but written outside of it. Journal lock
+     * keeps batches in the same order as records were added.
+     */
+    private void flushJournal() {
+        synchronized (mJournalLock) {
+            List<String> records;
+            boolean isRewrite;
+            synchronized (this) {
+                isRewrite = mIsRewriteNeeded;
+                if (isRewrite) {
+                    records = new ArrayList<String>(mEntries.size());
+                    for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                        Entry value = entry.getValue();
+                        records.add(RECORD_PUT + ' ' + value.size + ' ' + value.time + ' ' + escape(entry.getKey()));
+                        if (value.metadata != null) records.add(toMetaRecord(entry.getKey(), value.metadata));
+                    }
+                    mJournalRecords = mEntries.size();
+                    mIsRewriteNeeded = false;
+                } else {
+                    if (mPendingRecords.isEmpty()) return;
+                    records = new ArrayList<String>(mPendingRecords);
+                }
+                mPendingRecords.clear(); // Rewritten journal already contains all applied records
+                mPendingReads = 0;
+            }
+
+            if (isRewrite) {
+                rewriteJournal(records);
+            } else {
+                appendJournal(records);
+            }
+        }
+    }
+
+    /**
+     * Writes given records into new journal, replacing the old one. Should be called under journal lock.
+     */
+    private void rewriteJournal(List<String> records) {
+        closeJournal();
+
+        File journal = new File(mDir, JOURNAL_FILE);
+        File journalTmp = new File(mDir, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            mDir.mkdirs();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalTmp), "UTF-8"));
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (String record : records) {
+                writer.write(record);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (!journalTmp.renameTo(journal)) throw new IOException("Cannot rename " + journalTmp);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write disk cache journal: " + e.getMessage());
+            journal.delete();
+        } finally {
+            if (writer != null) try {
+                writer.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Appends given records to the journal and flushes it. Should be called under journal lock.
+     */
+    private void appendJournal(List<String> records) {
+        try {
+            if (mJournalWriter == null) {
+                FileOutputStream out = new FileOutputStream(new File(mDir, JOURNAL_FILE), true);
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+            }
+            for (String record : records) {
+                mJournalWriter.write(record);
+                mJournalWriter.write('\n');
+            }
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write disk cache journal: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter != null) try {
+            mJournalWriter.close();
+        } catch (IOException e) {
+        }
+        mJournalWriter = null;
+    }
+
+    private static String toMetaRecord(String key, CacheMetadata metadata) {
+        return RECORD_META + ' ' + metadata.getExpires() + ' ' + escape(metadata.getETag()) + ' '
+                + escape(metadata.getLastModified()) + ' ' + escape(key);
+    }
+
+    /**
+     * Escapes '%', whitespaces and line breaks as %XX, so that value can be stored as a single record field.
+     */
+    private static String escape(String value) {
+        if (value == null) return NO_VALUE;
+        if (NO_VALUE.equals(value)) return "%2D";
+
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '%' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                builder.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String unescape(String value) {
+        if (NO_VALUE.equals(value)) return null;
+        if (value.indexOf('%') == -1) return value;
+
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < length) {
+                builder.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static boolean isServiceFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name) || ".nomedia".equals(name);
+    }
+
+    private static class Entry {
+        final long size;
+        long time;
+        CacheMetadata metadata;
+
+        Entry(long size, long time) {
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+}
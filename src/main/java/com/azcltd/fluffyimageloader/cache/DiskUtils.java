@@ -8,8 +8,11 @@ import android.os.Environment;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 
 public class DiskUtils {
 
@@ -18,36 +21,74 @@ public class DiskUtils {
     private static final String DIR_CAMERA_PHOTOS = "Android/data/%s/camera";
     private static final String DIR_TEMP = "Android/data/%s/temp";
 
-    private static boolean sIsUsingInternalCache;
+    private static final char[] SHARD_NAMES = "0123456789abcdef".toCharArray();
+    public static final int MAX_SHARD_LEVELS = 8;
 
-    public static File getCacheDir(Context context) {
-        File cacheDir = null;
-        if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-            File externalDir = Environment.getExternalStorageDirectory();
-            if (externalDir != null) {
-                cacheDir = new File(externalDir, String.format(DIR_EXTERNAL_CACHE, context.getPackageName()));
-                sIsUsingInternalCache = false;
-            }
-        }
+    private static volatile boolean sIsUsingInternalCache;
 
-        if (cacheDir == null) {
-            sIsUsingInternalCache = true;
-            cacheDir = new File(context.getCacheDir(), DIR_INTERNAL_CACHE);
-        }
+    /**
+     * Resolves cache directory on each call. Consider using {@link CacheStorage} which tracks cache directory
+     * location instead.
+     */
+    public static File getCacheDir(Context context) {
+        File cacheDir = getExternalCacheDir(context);
+        boolean isInternal = cacheDir == null;
+        if (isInternal) cacheDir = getInternalCacheDir(context);
 
+        sIsUsingInternalCache = isInternal;
         cacheDir.mkdirs();
         return cacheDir;
     }
 
+    /**
+     * @return Cache directory on external storage or null if external storage is not mounted.
+     */
+    public static File getExternalCacheDir(Context context) {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) return null;
+        File externalDir = Environment.getExternalStorageDirectory();
+        return externalDir == null ? null : new File(externalDir, String.format(DIR_EXTERNAL_CACHE, context.getPackageName()));
+    }
+
+    public static File getInternalCacheDir(Context context) {
+        return new File(context.getCacheDir(), DIR_INTERNAL_CACHE);
+    }
+
+    /**
+     * Whether internal cache directory was returned by last {@link #getCacheDir(Context)} call.
+     */
     public static boolean isInternalCacheUsed() {
         return sIsUsingInternalCache;
     }
 
+    /**
+     * Returns file for given name placed directly into cache directory.
+     *
+     * @deprecated {@link DiskCache} stores files in hashed subdirectories, see
+     *             {@link #getCacheFileForName(File, String, int)}.
+     */
+    @Deprecated
     public static File getCacheFileForName(Context context, String name) throws FileNotFoundException {
         if (name == null) throw new FileNotFoundException("Name is null");
         return new File(getCacheDir(context), name);
     }
 
+    /**
+     * Returns file for given name placed into {@code levels} levels of subdirectories of given cache directory.
+     * Each level contains 16 subdirectories, subdirectory is chosen by file name's hash.
+     */
+    public static File getCacheFileForName(File cacheDir, String name, int levels) throws FileNotFoundException {
+        if (name == null) throw new FileNotFoundException("Name is null");
+        if (levels <= 0) return new File(cacheDir, name);
+
+        int hash = name.hashCode();
+        StringBuilder path = new StringBuilder(levels * 2 + name.length());
+        for (int i = 0; i < levels && i < MAX_SHARD_LEVELS; i++) {
+            path.append(SHARD_NAMES[(hash >>> (i * 4)) & 0xF]).append(File.separatorChar);
+        }
+        path.append(name);
+        return new File(cacheDir, path.toString());
+    }
+
     /**
      * May return null if SD card is not available
      */
@@ -65,7 +106,7 @@ public class DiskUtils {
             if (externalDir != null) {
                 File photosDir = new File(externalDir, String.format(dir, context.getPackageName()));
                 photosDir.mkdirs();
-                createNomediaFile(context, photosDir);
+                createNomediaFile(context, photosDir, true);
 
                 File photo = createRandomFile(photosDir, ext);
                 try {
@@ -112,9 +153,16 @@ public class DiskUtils {
     }
 
     public static void createNomediaFile(Context context, File dir) {
+        createNomediaFile(context, dir, !isInternalCacheUsed());
+    }
+
+    /**
+     * Creates .nomedia file in given directory if it is placed on external storage, so that media scanner will skip it.
+     */
+    public static void createNomediaFile(Context context, File dir, boolean isExternal) {
         try {
             File nomedia = new File(dir, ".nomedia");
-            if (!isInternalCacheUsed() && !nomedia.exists() && nomedia.createNewFile()) {
+            if (isExternal && !nomedia.exists() && nomedia.createNewFile()) {
                 Intent intent = new Intent(Intent.ACTION_MEDIA_MOUNTED);
                 intent.setData(Uri.fromFile(Environment.getExternalStorageDirectory()));
                 context.sendBroadcast(intent);
@@ -124,25 +172,45 @@ public class DiskUtils {
         }
     }
 
+    /**
+     * @deprecated {@link DiskCache} keeps its directory within size by itself.
+     */
+    @Deprecated
     public static void keepCacheDirWithinSize(Context context, int internalSize, int externalSize) {
-        keepDirWithinSize(getCacheDir(context), isInternalCacheUsed() ? internalSize : externalSize);
+        // Not relying on static flag here, it can be changed by concurrent getCacheDir() call
+        File externalDir = getExternalCacheDir(context);
+        if (externalDir != null) {
+            keepDirWithinSize(externalDir, externalSize);
+        } else {
+            keepDirWithinSize(getInternalCacheDir(context), internalSize);
+        }
     }
 
+    /**
+     * Removes oldest files (including files in subdirectories) until total size of all files is less than given size.
+     * Service files of the cache (journal, .nomedia) are never removed.
+     *
+     * @deprecated Removed files are not removed from disk cache index, {@link DiskCache} keeps its directory within
+     *             size by itself.
+     */
+    @Deprecated
     public static void keepDirWithinSize(File dir, int size) {
         if (!dir.isDirectory()) return;
-        File[] files = dir.listFiles();
-        if (files == null) return;
+        List<File> files = listFilesRecursively(dir);
+        for (Iterator<File> iterator = files.iterator(); iterator.hasNext(); ) {
+            if (DiskIndex.isServiceFile(iterator.next().getName())) iterator.remove();
+        }
 
-        long dirSize = countDirSize(dir);
+        long dirSize = 0L;
+        for (File file : files) {
+            dirSize += file.length();
+        }
 
         if (dirSize < size) return;
 
-        Arrays.sort(files, new FileDateComparator());
-        int count = files.length;
-        File file;
-        for (int i = 0; i < count; i++) {
-            file = files[i];
-            long currentSize = file.isDirectory() ? 0l : file.length();
+        Collections.sort(files, new FileDateComparator());
+        for (File file : files) {
+            long currentSize = file.length();
             if (file.delete()) {
                 dirSize -= currentSize;
                 if (dirSize < size) break;
@@ -150,25 +218,40 @@ public class DiskUtils {
         }
     }
 
-    private static long countDirSize(File dir) {
-        if (!dir.isDirectory()) return -1;
+    /**
+     * @return All files in given directory and its subdirectories.
+     */
+    public static List<File> listFilesRecursively(File dir) {
+        List<File> list = new ArrayList<File>();
+        listFilesRecursively(dir, list);
+        return list;
+    }
+
+    private static void listFilesRecursively(File dir, List<File> list) {
         File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) return;
 
-        long dirSize = 0L;
         for (File file : files) {
-            dirSize += file.isDirectory() ? 0L : file.length();
+            if (file.isDirectory()) {
+                listFilesRecursively(file, list);
+            } else {
+                list.add(file);
+            }
         }
-        return dirSize;
     }
 
+    /**
+     * Removes all files and subdirectories of given directory.
+     */
     public static void cleanDir(File dir) {
         if (!dir.isDirectory()) return;
         File[] files = dir.listFiles();
         if (files == null) return;
 
-        for (File file : files)
+        for (File file : files) {
+            if (file.isDirectory()) cleanDir(file);
             file.delete();
+        }
     }
 
     public static void removeFile(String filePath) {
@@ -180,7 +263,9 @@ public class DiskUtils {
     private static class FileDateComparator implements Comparator<File> {
         @Override
         public int compare(File f1, File f2) {
-            return (int) (f1.lastModified() - f2.lastModified());
+            long time1 = f1.lastModified();
+            long time2 = f2.lastModified();
+            return time1 < time2 ? -1 : (time1 == time2 ? 0 : 1);
         }
     }
 }
@@ -0,0 +1,134 @@
+package com.azcltd.fluffyimageloader.loader;
+
+/**
+ * Concurrency limit adapting to measured latency and throughput (AIMD with latency gradient).<br/>
+ * <br/>
+ * Limit is reconsidered after each window of finished downloads (window size equals to current limit):
+ * <ul>
+ * <li>if latency (time to first byte) stays well above the lowest latency among recent requests for several windows in
+ * a row then requests are queued somewhere on the way, so limit is decreased;</li>
+ * <li>if limit was actually reached during the window and throughput noticeably dropped comparing to previous
+ * window then extra concurrency does not pay off, so limit is decreased by one;</li>
+ * <li>otherwise, if limit was actually reached during the window, limit is increased by one.</li>
+ * </ul>
+ * Single slow windows are ignored, since latency of mobile networks often varies a lot without any overload. Lowest
+ * latency is taken over a sliding window of requests, so it follows network changes in both directions.<br/>
+ * <br/>
+ * Failed requests (e.g. timeouts or server overload) decrease limit multiplicatively right away.
+ */
+class AdaptiveLimit {
+
+    /** Latency is considered congested once it exceeds no-load latency this many times */
+    private static final double LATENCY_TOLERANCE = 2.0;
+    /** Throughput drop which is considered as a sign of congestion */
+    private static final double THROUGHPUT_TOLERANCE = 0.8;
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final double FAILURE_DECREASE_FACTOR = 0.75;
+    private static final double LATENCY_SMOOTHING = 0.2;
+    /** Number of recent requests among which no-load (lowest) latency is taken */
+    private static final int BASELINE_SAMPLES = 64;
+    /** Number of consecutive windows with congested latency after which limit is decreased */
+    private static final int LATENCY_BREACHES = 3;
+
+    private int mMinLimit;
+    private int mMaxLimit;
+    private double mLimit;
+
+    /** Latencies of recent requests, ring buffer */
+    private final long[] mRecentLatencies = new long[BASELINE_SAMPLES];
+    private int mRecentCount;
+    private int mRecentPosition;
+    private int mLatencyBreaches;
+    private double mSmoothedLatency = -1.0;
+    private double mLastThroughput = -1.0;
+
+    private long mWindowStart;
+    private long mWindowBytes;
+    private int mWindowSamples;
+    private boolean mWindowSaturated;
+
+    AdaptiveLimit(int minLimit, int maxLimit, int initialLimit) {
+        setBounds(minLimit, maxLimit);
+        mLimit = clamp(initialLimit);
+    }
+
+    synchronized void setBounds(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) throw new IllegalArgumentException("Wrong limits: " + minLimit + ", " + maxLimit);
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = clamp(mLimit);
+    }
+
+    synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /**
+     * @param latency   Time to first byte, in milliseconds.
+     * @param bytes     Number of bytes loaded.
+     * @param saturated Whether limit was reached when request was finished.
+     */
+    synchronized void onSuccess(long latency, long bytes, boolean saturated) {
+        long now = System.currentTimeMillis();
+        if (mWindowSamples == 0) mWindowStart = now - latency;
+
+        mRecentLatencies[mRecentPosition] = latency;
+        mRecentPosition = (mRecentPosition + 1) % BASELINE_SAMPLES;
+        if (mRecentCount < BASELINE_SAMPLES) mRecentCount++;
+        mSmoothedLatency = mSmoothedLatency < 0 ? latency
+                : mSmoothedLatency + (latency - mSmoothedLatency) * LATENCY_SMOOTHING;
+
+        mWindowBytes += bytes;
+        mWindowSamples++;
+        mWindowSaturated |= saturated;
+        if (mWindowSamples < (int) mLimit) return;
+
+        double throughput = (double) mWindowBytes / Math.max(1L, now - mWindowStart);
+        boolean isCongested = mSmoothedLatency > Math.max(1L, getNoLoadLatency()) * LATENCY_TOLERANCE;
+        if (isCongested) {
+            if (++mLatencyBreaches >= LATENCY_BREACHES) {
+                mLimit = clamp(mLimit * DECREASE_FACTOR);
+                mLatencyBreaches = 0;
+            }
+        } else {
+            mLatencyBreaches = 0;
+            if (mWindowSaturated) {
+                if (mLastThroughput > 0 && throughput < mLastThroughput * THROUGHPUT_TOLERANCE) {
+                    mLimit = clamp(mLimit - 1.0);
+                } else {
+                    mLimit = clamp(mLimit + 1.0);
+                }
+            }
+        }
+        // Throughput of not saturated window shows demand rather than network capacity, so it is not compared
+        mLastThroughput = mWindowSaturated ? throughput : -1.0;
+        resetWindow();
+    }
+
+    synchronized void onFailure() {
+        mLimit = clamp(mLimit * FAILURE_DECREASE_FACTOR);
+        resetWindow();
+    }
+
+    /**
+     * @return Lowest latency among recent requests.
+     */
+    private long getNoLoadLatency() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < mRecentCount; i++) {
+            min = Math.min(min, mRecentLatencies[i]);
+        }
+        return min;
+    }
+
+    private void resetWindow() {
+        mWindowBytes = 0L;
+        mWindowSamples = 0;
+        mWindowSaturated = false;
+    }
+
+    private double clamp(double limit) {
+        return Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+    }
+
+}
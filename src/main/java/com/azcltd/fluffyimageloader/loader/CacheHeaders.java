@@ -0,0 +1,136 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import com.azcltd.fluffyimageloader.cache.CacheMetadata;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Converts http caching headers of responses into {@link CacheMetadata} and cache metadata into conditional request
+ * headers.<br/>
+ * <br/>
+ * Expiration time is taken from {@code Cache-Control} ({@code max-age} and {@code no-cache} directives) or
+ * {@code Expires} headers. If there are no such headers then expiration time is estimated as 10% of time passed since
+ * {@code Last-Modified} date, but not more than 24 hours (heuristic freshness, see RFC 7234). Otherwise given default max
+ * age is used.<br/>
+ * <br/>
+ * Responses with {@code no-store} directive should not be saved into disk cache at all, see {@link #isStorable}.
+ */
+class CacheHeaders {
+
+    static final int HTTP_NOT_MODIFIED = 304;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final long MAX_HEURISTIC_AGE = 24L * 60L * 60L * 1000L;
+
+    /** Date format is not thread safe, so each download thread keeps its own instance */
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private CacheHeaders() {
+    }
+
+    /**
+     * @param previous      Metadata of previously cached resource, its validators are kept if response (e.g. "304 Not
+     *                      Modified" one) does not contain new ones. May be null.
+     * @param defaultMaxAge Max age (in milliseconds) used if response has no expiration info, or
+     *                      {@link CacheMetadata#NEVER_EXPIRES}.
+     * @return Metadata or {@code null} if response has neither validators nor expiration info.
+     */
+    static CacheMetadata toMetadata(FetchResponse response, CacheMetadata previous, long defaultMaxAge) {
+        String eTag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (previous != null) {
+            if (eTag == null) eTag = previous.getETag();
+            if (lastModified == null) lastModified = previous.getLastModified();
+        }
+
+        long now = System.currentTimeMillis();
+        long expires = getExpires(response, now);
+        if (expires == -1L && lastModified != null) {
+            long modified = parseDate(lastModified);
+            if (modified != -1L && modified < now) expires = now + Math.min((now - modified) / 10L, MAX_HEURISTIC_AGE);
+        }
+        if (expires == -1L) {
+            boolean isNever = defaultMaxAge >= CacheMetadata.NEVER_EXPIRES - now;
+            expires = isNever ? CacheMetadata.NEVER_EXPIRES : now + defaultMaxAge;
+        }
+
+        if (eTag == null && lastModified == null && expires == CacheMetadata.NEVER_EXPIRES) return null;
+        return new CacheMetadata(eTag, lastModified, expires);
+    }
+
+    /**
+     * @return false if response should not be persisted, i.e. it has {@code Cache-Control: no-store} header.
+     */
+    static boolean isStorable(FetchResponse response) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl == null) return true;
+
+        for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+            if (directive.trim().equals("no-store")) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Copy of given request headers (may be null) with conditional headers added from given metadata.
+     */
+    static Map<String, String> addConditionalHeaders(Map<String, String> headers, CacheMetadata metadata) {
+        Map<String, String> result = headers == null ? new HashMap<String, String>() : new HashMap<String, String>(headers);
+        if (metadata.getETag() != null) result.put("If-None-Match", metadata.getETag());
+        if (metadata.getLastModified() != null) result.put("If-Modified-Since", metadata.getLastModified());
+        return result;
+    }
+
+    /**
+     * @return Expiration time or -1 if response has no expiration info.
+     */
+    private static long getExpires(FetchResponse response, long now) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache")) {
+                    return now;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        String value = directive.substring("max-age=".length()).replace("\"", "");
+                        return now + Math.max(0L, Long.parseLong(value)) * 1000L;
+                    } catch (NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            long time = parseDate(expires);
+            return time == -1L ? now : time; // Invalid date means already expired
+        }
+        return -1L;
+    }
+
+    /**
+     * @return Time of given http date or -1 if it cannot be parsed.
+     */
+    private static long parseDate(String date) {
+        try {
+            return DATE_FORMAT.get().parse(date).getTime();
+        } catch (ParseException e) {
+            return -1L;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which stops reading from underlying stream once given {@link CancelSignal} reports that reading is no
+ * longer needed. All following reads will throw {@link CancelledException}.
+ */
+class CancellableInputStream extends FilterInputStream {
+
+    private final CancelSignal mSignal;
+    private volatile boolean mIsCancelled;
+    private long mReadCount;
+
+    CancellableInputStream(InputStream in, CancelSignal signal) {
+        super(in);
+        mSignal = signal;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * @return Number of bytes read or skipped so far.
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        int b = super.read();
+        if (b != -1) mReadCount++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkCancelled();
+        int c = super.read(buffer, offset, count);
+        if (c > 0) mReadCount += c;
+        return c;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkCancelled();
+        long c = super.skip(count);
+        if (c > 0) mReadCount += c;
+        return c;
+    }
+
+    private void checkCancelled() throws IOException {
+        if (!mIsCancelled && mSignal.isCancelled()) mIsCancelled = true;
+        if (mIsCancelled) throw new CancelledException();
+    }
+
+    interface CancelSignal {
+        boolean isCancelled();
+    }
+
+    static class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("Reading was cancelled");
+        }
+    }
+
+}
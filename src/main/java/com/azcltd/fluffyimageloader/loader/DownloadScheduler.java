@@ -0,0 +1,211 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import com.azcltd.fluffyimageloader.loader.ResourcesLoadingManager.LoadingState;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs download tasks queued in loading manager (see {@link ResourcesLoadingManager#queueTask}) within global and per
+ * host concurrency limits.<br/>
+ * <br/>
+ * Global limit adapts to measured latency and throughput (see {@link AdaptiveLimit}). Tasks are queued in per host
+ * groups, hosts which reached their limit are skipped in favor of next tasks of other hosts, so single slow host does not
+ * block other downloads.<br/>
+ * <br/>
+ * Background tasks, which are not tracked by loading manager, are started in order only when there are no queued
+ * download tasks to start (see {@link #scheduleBackground}).
+ */
+class DownloadScheduler {
+
+    private static final LoadingState STATE = LoadingState.WAIT_DOWNLOADING;
+
+    private final ResourcesLoadingManager<?> mLoadingManager;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AdaptiveLimit mLimit;
+    private final HostFilter mHostFilter = new HostFilter();
+
+    private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+    private final LinkedList<Download> mBackgroundQueue = new LinkedList<Download>();
+    private int mActive;
+    private int mMaxPerHost;
+
+    DownloadScheduler(ResourcesLoadingManager<?> loadingManager, int minLimit, int maxLimit, int initialLimit,
+                      int maxPerHost) {
+        mLoadingManager = loadingManager;
+        mLimit = new AdaptiveLimit(minLimit, maxLimit, initialLimit);
+        mMaxPerHost = maxPerHost;
+    }
+
+    void setLimits(int minLimit, int maxLimit) {
+        mLimit.setBounds(minLimit, maxLimit);
+        dispatch();
+    }
+
+    /**
+     * @param max Max number of simultaneous downloads from a single host, 0 means no limit.
+     */
+    void setMaxPerHost(int max) {
+        synchronized (this) {
+            mMaxPerHost = max;
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues download task and starts it if limits allow.
+     *
+     * @return false if given Uri is not in loading queue anymore.
+     */
+    boolean schedule(String uri, Runnable task) {
+        String host = getHost(uri);
+        if (!mLoadingManager.queueTask(uri, STATE, new Download(host, task), host)) return false;
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Queues task which is not tracked by loading manager (e.g. background revalidation of cached resource). Such tasks
+     * are started after all queued download tasks.
+     */
+    void scheduleBackground(String uri, Runnable task) {
+        synchronized (this) {
+            mBackgroundQueue.add(new Download(getHost(uri), task));
+        }
+        dispatch();
+    }
+
+    /**
+     * Reports successfully finished download.
+     *
+     * @param latency Time to first byte, in milliseconds.
+     * @param bytes   Number of downloaded bytes.
+     */
+    void onDownloaded(long latency, long bytes) {
+        boolean saturated;
+        synchronized (this) {
+            saturated = mActive >= mLimit.getLimit();
+        }
+        mLimit.onSuccess(latency, bytes, saturated);
+    }
+
+    /**
+     * Reports download failed because of server overload (e.g. 5xx or 429 response).
+     */
+    void onDownloadFailed() {
+        mLimit.onFailure();
+    }
+
+    /**
+     * Reports download failed with given exception. Only timeouts and broken connections are signs of overload, other
+     * errors (e.g. malformed uri, unknown host or local I/O errors) do not affect the limit.
+     */
+    void onDownloadFailed(IOException e) {
+        if (e instanceof SocketTimeoutException || e instanceof SocketException) mLimit.onFailure();
+    }
+
+    /**
+     * Starts queued downloads while limits allow.
+     */
+    void dispatch() {
+        while (true) {
+            Download download;
+            synchronized (this) {
+                if (mActive >= mLimit.getLimit()) return;
+                download = (Download) mLoadingManager.pollNextTask(STATE, mHostFilter);
+                if (download == null) download = pollBackground();
+                if (download == null) return;
+                mActive++;
+                Integer count = mActivePerHost.get(download.mHost);
+                mActivePerHost.put(download.mHost, count == null ? 1 : count + 1);
+            }
+            mExecutor.execute(download);
+        }
+    }
+
+    private Download pollBackground() {
+        for (Iterator<Download> iterator = mBackgroundQueue.iterator(); iterator.hasNext(); ) {
+            Download download = iterator.next();
+            if (mHostFilter.accept(download.mHost)) {
+                iterator.remove();
+                return download;
+            }
+        }
+        return null;
+    }
+
+    private void onFinished(String host) {
+        synchronized (this) {
+            mActive--;
+            int count = mActivePerHost.get(host) - 1;
+            if (count == 0) {
+                mActivePerHost.remove(host);
+            } else {
+                mActivePerHost.put(host, count);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Returns host part of the Uri (without user info and port) or empty string if Uri has no host.
+     */
+    static String getHost(String uri) {
+        int start = uri.indexOf("://");
+        if (start == -1) return "";
+        start += 3;
+
+        int end = start;
+        int length = uri.length();
+        while (end < length) {
+            char c = uri.charAt(end);
+            if (c == '/' || c == '?' || c == '#') break;
+            if (c == '@') start = end + 1;
+            end++;
+        }
+
+        int port = uri.lastIndexOf(':', end - 1);
+        if (port >= start) {
+            int bracket = uri.indexOf(']', port);
+            if (bracket == -1 || bracket >= end) end = port; // Colon is not a part of IPv6 address
+        }
+        return uri.substring(start, end).toLowerCase();
+    }
+
+    private class HostFilter implements ResourcesLoadingManager.GroupFilter {
+        @Override
+        public boolean accept(String host) {
+            // Called with scheduler's lock held, see dispatch()
+            if (mMaxPerHost <= 0) return true;
+            Integer count = mActivePerHost.get(host);
+            return count == null || count < mMaxPerHost;
+        }
+    }
+
+    private class Download implements Runnable {
+        private final String mHost;
+        private final Runnable mTask;
+
+        Download(String host, Runnable task) {
+            mHost = host;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                onFinished(mHost);
+            }
+        }
+    }
+
+}
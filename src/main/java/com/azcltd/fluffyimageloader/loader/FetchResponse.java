@@ -0,0 +1,47 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response returned by {@link ResourceFetcher}: resource stream along with its metadata.
+ */
+public abstract class FetchResponse implements Closeable {
+
+    /**
+     * @return Http status code, local resources are always reported with code 200.
+     */
+    public abstract int getStatusCode();
+
+    public boolean isSuccessful() {
+        return getStatusCode() / 100 == 2;
+    }
+
+    /**
+     * @return Resource content stream. Stream is closed along with this response.
+     */
+    public abstract InputStream getStream() throws IOException;
+
+    /**
+     * @return Content length or -1 if it is unknown.
+     */
+    public abstract long getContentLength();
+
+    /**
+     * @return Value of the response header or {@code null} if there is no such header.
+     */
+    public abstract String getHeader(String name);
+
+    /**
+     * Closes response and releases its resources. Underlying connection may be reused.
+     */
+    @Override
+    public abstract void close();
+
+    /**
+     * Closes response without reading the rest of its content. Underlying connection is not reused.
+     */
+    public abstract void abort();
+
+}
@@ -0,0 +1,108 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Base class for fetchers loading resources over http through {@link HttpURLConnection}.<br/>
+ * <br/>
+ * Allows to configure connection and read timeouts. Number of simultaneous connections to a single host is limited by
+ * loader itself, see {@link ResourcesLoader#setMaxDownloadsPerHost(int)}.
+ */
+public abstract class HttpFetcher implements ResourceFetcher {
+
+    public static final int DEFAULT_TIMEOUT = 20000;
+
+    private volatile int mConnectTimeout = DEFAULT_TIMEOUT;
+    private volatile int mReadTimeout = DEFAULT_TIMEOUT;
+
+    /**
+     * @param timeout Connection timeout in milliseconds, 0 means no timeout.
+     */
+    public HttpFetcher setConnectTimeout(int timeout) {
+        mConnectTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param timeout Read timeout in milliseconds, 0 means no timeout.
+     */
+    public HttpFetcher setReadTimeout(int timeout) {
+        mReadTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Creates connection for given url. Connection is not connected yet.
+     */
+    protected abstract HttpURLConnection openConnection(URL url) throws IOException;
+
+    @Override
+    public FetchResponse fetch(String uri, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = openConnection(new URL(uri));
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        if (headers != null) {
+            for (Map.Entry<String, String> pair : headers.entrySet()) {
+                connection.addRequestProperty(pair.getKey(), pair.getValue());
+            }
+        }
+        return new HttpResponse(connection, connection.getResponseCode());
+    }
+
+    private static class HttpResponse extends FetchResponse {
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private InputStream mStream;
+
+        HttpResponse(HttpURLConnection connection, int statusCode) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public synchronized InputStream getStream() throws IOException {
+            if (mStream == null) mStream = mConnection.getInputStream();
+            return mStream;
+        }
+
+        @Override
+        public long getContentLength() {
+            String length = mConnection.getHeaderField("Content-Length");
+            try {
+                return length == null ? -1L : Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public synchronized void close() {
+            // Closing error stream as well, so that connection can be reused
+            InputStream in = mStream == null ? mConnection.getErrorStream() : mStream;
+            if (in != null) try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public synchronized void abort() {
+            mConnection.disconnect();
+        }
+    }
+
+}
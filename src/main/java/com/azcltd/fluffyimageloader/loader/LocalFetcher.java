@@ -0,0 +1,86 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * Fetcher opening local resources: files ({@code file://}) are opened directly, other Uris (e.g. {@code content://} or
+ * {@code android.resource://}) are opened through {@link android.content.ContentResolver}.
+ */
+public class LocalFetcher implements ResourceFetcher {
+
+    private static final String FILE_SCHEME = "file://";
+
+    private final Context mAppContext;
+
+    public LocalFetcher(Context appContext) {
+        mAppContext = appContext;
+    }
+
+    /**
+     * @param headers Ignored.
+     */
+    @Override
+    public FetchResponse fetch(String uri, Map<String, String> headers) throws IOException {
+        if (uri.startsWith(FILE_SCHEME)) {
+            File file = new File(Uri.parse(uri).getPath());
+            return new StreamResponse(new FileInputStream(file), file.length());
+        } else {
+            InputStream in = mAppContext.getContentResolver().openInputStream(Uri.parse(uri));
+            if (in == null) throw new FileNotFoundException("Cannot open " + uri);
+            return new StreamResponse(in, -1L);
+        }
+    }
+
+    private static class StreamResponse extends FetchResponse {
+        private final InputStream mStream;
+        private final long mLength;
+
+        StreamResponse(InputStream stream, long length) {
+            mStream = stream;
+            mLength = length;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return HttpURLConnection.HTTP_OK;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return mStream;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mLength;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void abort() {
+            close();
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetcher loading resources over http with OkHttp.
+ */
+public class OkHttpFetcher extends HttpFetcher {
+
+    private final OkHttpClient mClient;
+
+    public OkHttpFetcher() {
+        this(new OkHttpClient());
+    }
+
+    public OkHttpFetcher(OkHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Sets own connection pool for this fetcher instead of OkHttp's default shared pool.
+     *
+     * @param maxIdleConnections Max number of idle connections kept for reuse.
+     * @param keepAliveMs        Time to keep idle connections alive, in milliseconds.
+     */
+    public OkHttpFetcher setConnectionPool(int maxIdleConnections, long keepAliveMs) {
+        mClient.setConnectionPool(new ConnectionPool(maxIdleConnections, keepAliveMs));
+        return this;
+    }
+
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return mClient.open(url);
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Opens resources by their Uris. Will be called from background threads, so implementations should be thread safe.
+ */
+public interface ResourceFetcher {
+
+    /**
+     * @param headers Additional request headers, may be null.
+     * @return Opened response, should be closed by caller.
+     * @throws IOException if resource cannot be opened.
+     */
+    FetchResponse fetch(String uri, Map<String, String> headers) throws IOException;
+
+}
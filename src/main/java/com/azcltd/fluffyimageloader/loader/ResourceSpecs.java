@@ -5,15 +5,24 @@ import java.util.Map;
 
 public abstract class ResourceSpecs<T> {
 
+    /** Priority of resources which are not going to be displayed right away */
+    public static final int PRIORITY_PREFETCH = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
     private String mUri;
     private boolean mUseMemoryCache;
     private boolean mUseDiskCache;
     private long mDelay;
+    private int mPriority = PRIORITY_NORMAL;
 
     private OnResourceLoadingListener<T> mOnLoadingListener;
 
     private Map<String, String> mHeaders;
 
+    /** Loading manager which queued this specs object, it is notified when specs object is reused for another Uri */
+    private volatile ResourcesLoadingManager<T> mLoadingManager;
+
     public ResourceSpecs(String uri) {
         setUri(uri);
     }
@@ -23,6 +32,7 @@ public abstract class ResourceSpecs<T> {
     }
 
     public void setUri(String uri) {
+        String oldUri = mUri;
         mUri = uri;
 
         UriHelper uriHelper = new UriHelper(uri);
@@ -32,6 +42,13 @@ public abstract class ResourceSpecs<T> {
             mUseDiskCache = true;
             mUseMemoryCache = true;
         }
+
+        ResourcesLoadingManager<T> manager = mLoadingManager;
+        if (manager != null && oldUri != null && !oldUri.equals(uri)) manager.onSpecsUriChanged(this, oldUri);
+    }
+
+    void setLoadingManager(ResourcesLoadingManager<T> manager) {
+        mLoadingManager = manager;
     }
 
     public boolean isUseMemoryCache() {
@@ -58,6 +75,18 @@ public abstract class ResourceSpecs<T> {
         mDelay = delay;
     }
 
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Resources with higher priority are loaded first. Among resources with same priority most recently requested
+     * resources are loaded first. Default priority is {@link #PRIORITY_NORMAL}.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
     public void setOnResourceLoadingListener(OnResourceLoadingListener<T> listener) {
         mOnLoadingListener = listener;
     }
@@ -100,6 +129,13 @@ public abstract class ResourceSpecs<T> {
         return false;
     }
 
+    static <T> int getPriority(Collection<ResourceSpecs<T>> list) {
+        int priority = Integer.MIN_VALUE;
+        for (ResourceSpecs<?> specs : list)
+            if (specs.getPriority() > priority) priority = specs.getPriority();
+        return priority;
+    }
+
     static <T> boolean isUseDiskCache(Collection<ResourceSpecs<T>> list) {
         for (ResourceSpecs<?> specs : list)
             if (specs.isUseDiskCache()) return true;
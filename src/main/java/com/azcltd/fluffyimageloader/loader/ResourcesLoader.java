@@ -5,26 +5,38 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
+import com.azcltd.fluffyimageloader.cache.CacheMetadata;
 import com.azcltd.fluffyimageloader.cache.DefaultCacheKeyGenerator;
 import com.azcltd.fluffyimageloader.cache.DiskCache;
 import com.azcltd.fluffyimageloader.cache.ICacheKeyGenerator;
 import com.azcltd.fluffyimageloader.loader.ResourcesLoadingManager.LoadingState;
-import com.squareup.okhttp.OkHttpClient;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * Loads resources in several stages, each stage runs on its own threads:
+ * <ul>
+ * <li>managing: single manager thread looks for resources in memory and disk caches;</li>
+ * <li>fetching and persisting: downloads are read from network and written into disk cache by download threads, their
+ * number adapts to network conditions (see {@link DownloadScheduler});</li>
+ * <li>decoding: resources are loaded from disk cache or local files by decode threads, one per CPU core;</li>
+ * <li>delivering: loaded resources are passed to waiting specs objects on main thread.</li>
+ * </ul>
+ * Downloaded resources which are not saved into disk cache (and all downloaded resources when streaming to disk cache,
+ * see {@link #setStreamingToDiskCache(boolean)}) are decoded right from the network stream by download threads, since
+ * handing them over to decode threads would require keeping whole responses in memory.
+ */
 public abstract class ResourcesLoader<T> {
 
     public static final long MIN_LOADING_DELAY = 100;
@@ -32,12 +44,26 @@ public abstract class ResourcesLoader<T> {
 
     private static final int MAX_EXTERNAL_CACHE_SIZE = 100 * 1024 * 1024;
     private static final int MAX_INTERNAL_CACHE_SIZE = 30 * 1024 * 1024;
-    private static final int DOWNLOAD_THREAD_POOL_SIZE = 4;
-    private static final int LOCAL_LOADER_THREAD_POOL_SIZE = 2;
+    private static final int MIN_DOWNLOADS = 1;
+    private static final int MAX_DOWNLOADS = 12;
+    private static final int INITIAL_DOWNLOADS = 4;
+    private static final int MAX_DOWNLOADS_PER_HOST = MAX_DOWNLOADS;
+    private static final int DECODE_THREAD_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
 
     private static final ICacheKeyGenerator DEFAULT_CACHE_KEY_GENERATOR = new DefaultCacheKeyGenerator();
 
+    private static final CancellableInputStream.CancelSignal NEVER_CANCELLED = new CancellableInputStream.CancelSignal() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
     private boolean mIsVerbose = false;
+    private boolean mIsFinishOutdatedDownloads = false;
+    private boolean mIsStreamingToDiskCache = false;
+    private boolean mIsStaleWhileRevalidate = false;
+    private long mDefaultMaxAge = CacheMetadata.NEVER_EXPIRES;
 
     private final Context mAppContext;
     private final DiskCache mDiskCache;
@@ -46,9 +72,12 @@ public abstract class ResourcesLoader<T> {
     private ICacheKeyGenerator mCacheKeyGenerator;
 
     private Thread mManagerThread;
-    private final ExecutorService mDownloadThreadPool;
-    private final ExecutorService mLocalLoaderThreadPool;
-    private final OkHttpClient mHttpClient;
+    private final DownloadScheduler mDownloadScheduler;
+    private final ExecutorService mDecodeThreadPool;
+    private volatile ResourceFetcher mFetcher;
+    private volatile ResourceFetcher mLocalFetcher;
+    /** Cache keys of resources being revalidated in background */
+    private final Set<String> mRevalidatingKeys = Collections.synchronizedSet(new HashSet<String>());
 
     private final Handler mHandler;
 
@@ -60,11 +89,23 @@ public abstract class ResourcesLoader<T> {
         mAppContext = appContext;
         mDiskCache = new DiskCache(appContext, maxExternalCacheSize, maxInternalCacheSize);
         mLoadingManager = new ResourcesLoadingManager<T>();
-        mDownloadThreadPool = Executors.newFixedThreadPool(DOWNLOAD_THREAD_POOL_SIZE);
-        mLocalLoaderThreadPool = Executors.newFixedThreadPool(LOCAL_LOADER_THREAD_POOL_SIZE);
-        mHttpClient = new OkHttpClient();
-//        mHttpClient = ConcurrentHttpClient.createHttpClient(DOWNLOAD_THREAD_POOL_SIZE);
-        mHandler = new LoadHandler<T>(mLoadingManager);
+        mDownloadScheduler = new DownloadScheduler(mLoadingManager, MIN_DOWNLOADS, MAX_DOWNLOADS, INITIAL_DOWNLOADS,
+                MAX_DOWNLOADS_PER_HOST);
+        mDecodeThreadPool = Executors.newFixedThreadPool(DECODE_THREAD_POOL_SIZE);
+        mFetcher = new OkHttpFetcher();
+        mLocalFetcher = new LocalFetcher(appContext);
+        mHandler = new LoadHandler<T>(this, mLoadingManager);
+        mLoadingManager.setOnTaskRequeuedListener(new ResourcesLoadingManager.OnTaskRequeuedListener() {
+            @Override
+            public void onTaskRequeued(LoadingState state) {
+                if (state == LoadingState.WAIT_DOWNLOADING) {
+                    mDownloadScheduler.dispatch();
+                } else if (state == LoadingState.WAIT_LOADING) {
+                    // Extra runner finds nothing to poll if original runner takes requeued task first
+                    mDecodeThreadPool.execute(new QueuedTaskRunner(state));
+                }
+            }
+        });
     }
 
     public void setCacheKeyGenerator(ICacheKeyGenerator generator) {
@@ -75,6 +116,50 @@ public abstract class ResourcesLoader<T> {
         mIsVerbose = verbose;
     }
 
+    /**
+     * Sets fetcher used to download remote resources. By default {@link OkHttpFetcher} with default settings is used.
+     */
+    public void setFetcher(ResourceFetcher fetcher) {
+        if (fetcher == null) throw new NullPointerException("Fetcher cannot be null");
+        mFetcher = fetcher;
+    }
+
+    public ResourceFetcher getFetcher() {
+        return mFetcher;
+    }
+
+    /**
+     * Sets fetcher used to open local resources (files, content providers, etc). By default {@link LocalFetcher} is
+     * used.
+     */
+    public void setLocalFetcher(ResourceFetcher fetcher) {
+        if (fetcher == null) throw new NullPointerException("Fetcher cannot be null");
+        mLocalFetcher = fetcher;
+    }
+
+    public ResourceFetcher getLocalFetcher() {
+        return mLocalFetcher;
+    }
+
+    /**
+     * Sets bounds of simultaneous downloads number. Actual number of simultaneous downloads adapts to measured network
+     * latency and throughput within these bounds. Default bounds are 1 and 12.
+     */
+    public void setDownloadsLimits(int min, int max) {
+        mDownloadScheduler.setLimits(min, max);
+    }
+
+    /**
+     * Sets max number of simultaneous downloads from a single host, 0 means no limit. Default value is 12, same as
+     * default max of downloads limit (see {@link #setDownloadsLimits}).<br/>
+     * <br/>
+     * Per host limit is not adaptive, so when it is lower than max of downloads limit, adaptive limit cannot grow
+     * above it for resources loaded from a single host.
+     */
+    public void setMaxDownloadsPerHost(int max) {
+        mDownloadScheduler.setMaxPerHost(max);
+    }
+
     public DiskCache getDiskCache() {
         return mDiskCache;
     }
@@ -87,6 +172,58 @@ public abstract class ResourcesLoader<T> {
         return mIsVerbose;
     }
 
+    /**
+     * By default download is cancelled as soon as all specs objects waiting for the resource are outdated (i.e. were
+     * reused for another Uris). If this option is set then such downloads will be finished and saved into disk cache
+     * (if disk cache is used), only resource loading will be skipped.
+     */
+    public void setFinishOutdatedDownloads(boolean finish) {
+        mIsFinishOutdatedDownloads = finish;
+    }
+
+    public boolean isFinishOutdatedDownloads() {
+        return mIsFinishOutdatedDownloads;
+    }
+
+    /**
+     * If set then downloaded resources are loaded straight from network stream while the same data is written into
+     * disk cache, instead of loading resources from disk cache file once it is fully written. Cached file is kept only if
+     * both loading and writing succeeded.
+     */
+    public void setStreamingToDiskCache(boolean streaming) {
+        mIsStreamingToDiskCache = streaming;
+    }
+
+    public boolean isStreamingToDiskCache() {
+        return mIsStreamingToDiskCache;
+    }
+
+    /**
+     * Downloaded resources are saved into disk cache along with their validators (ETag and Last-Modified) and
+     * expiration time (see {@link CacheMetadata}). Expired resources are revalidated with conditional request before
+     * loading them from disk cache. If this option is set then expired resources are loaded from disk cache right away
+     * and revalidated in background, so updated resource will be loaded next time.
+     */
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        mIsStaleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    public boolean isStaleWhileRevalidate() {
+        return mIsStaleWhileRevalidate;
+    }
+
+    /**
+     * Sets max age (in milliseconds) of downloaded resources for which server provided no expiration info. By default
+     * such resources never expire ({@link CacheMetadata#NEVER_EXPIRES}).
+     */
+    public void setDefaultMaxAge(long maxAge) {
+        mDefaultMaxAge = maxAge;
+    }
+
+    public long getDefaultMaxAge() {
+        return mDefaultMaxAge;
+    }
+
     protected void loadResource(ResourceSpecs<T> specs) {
         if (specs == null) return;
 
@@ -97,14 +234,16 @@ public abstract class ResourcesLoader<T> {
             return;
         }
 
-        T res = getFromMemoryCache(toCacheKey(uri));
+        String key = toCacheKey(uri); // Computed only once, loading manager keeps it for other loading steps
+        T res = findInMemoryCache(key, Collections.singleton(specs));
         if (res != null) {
             if (isVerbose()) Log.d(TAG, "1. Resource is loaded from memory cache in same moment: " + uri);
             specs.onLoaded(res, true, false);
+            if (res != null) releaseResource(res);
         } else {
             if (isVerbose()) Log.d(TAG, "1. Resource is posted to the queue: " + uri);
             specs.onPrepare();
-            mLoadingManager.addSpecs(specs);
+            mLoadingManager.addSpecs(specs, key);
         }
 
         if (mManagerThread == null) {
@@ -117,43 +256,204 @@ public abstract class ResourcesLoader<T> {
 
     protected abstract void putToMemoryCache(String key, T res);
 
+    /**
+     * Returns key under which resource loaded for given specs objects is stored in memory cache. Default implementation
+     * returns {@code cacheKey} as is, subclasses may override it to keep several variants of same resource
+     * (e.g. images of different sizes).
+     *
+     * @param cacheKey Resource key as returned by {@link #toCacheKey(String)}. May be null.
+     */
+    protected String toMemoryCacheKey(String cacheKey, Collection<ResourceSpecs<T>> specsList) {
+        return cacheKey;
+    }
+
     /**
      * @param in InputStream from which resource should be loaded. Should be closed inside this method! May be null.
      * @return Will be called from background thread to get resource object.
      */
     protected abstract T loadFromStream(InputStream in, Collection<ResourceSpecs<T>> specsList);
 
+    /**
+     * Called from background thread if {@link #loadFromStream} returned {@code null}.
+     *
+     * @return true if resource should be loaded from the same source once again (e.g. with other loading options).
+     *         Default implementation returns false.
+     */
+    protected boolean onLoadingFailed(Collection<ResourceSpecs<T>> specsList) {
+        return false;
+    }
+
     private InputStream openFileUriAsInputStream(String fileUri) {
         try {
-            return mAppContext.getContentResolver().openInputStream(Uri.parse(fileUri));
-        } catch (FileNotFoundException e) {
+            // Local responses have nothing to release except the stream itself
+            return mLocalFetcher.fetch(fileUri, null).getStream();
+        } catch (IOException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
             return null;
         }
     }
 
-    private T saveLoadedResource(String uri, InputStream in, boolean skipDiskCache) {
+    /**
+     * Called once loader does not hold given resource anymore. Resources returned by {@link #getFromMemoryCache},
+     * {@link #loadFromStream}, {@link #findMemoryCacheVariant} and {@link #loadFromVariant} are held by the loader until
+     * this method is called for them, i.e. until they are delivered to specs objects or used to create another resource.
+     * Resources of outdated Uris may never be released. Default implementation does nothing.
+     */
+    protected void releaseResource(T res) {
+    }
+
+    /**
+     * Called from manager thread if resource is not found in memory cache. Returns another variant of the resource
+     * stored in memory cache (see {@link #toMemoryCacheKey}) from which required resource can be created with
+     * {@link #loadFromVariant}. Default implementation returns null.
+     *
+     * @param cacheKey Resource key as returned by {@link #toCacheKey(String)}.
+     */
+    protected T findMemoryCacheVariant(String cacheKey, Collection<ResourceSpecs<T>> specsList) {
+        return null;
+    }
+
+    /**
+     * Called from background thread to create resource for given specs from the variant returned by
+     * {@link #findMemoryCacheVariant}.
+     *
+     * @return Created resource or {@code null} if resource should be loaded from disk cache or original source instead.
+     */
+    protected T loadFromVariant(T variant, Collection<ResourceSpecs<T>> specsList) {
+        return null;
+    }
+
+    /**
+     * @return Cache key of queued Uri, computed when Uri was added to the queue.
+     */
+    private String getCacheKey(String uri) {
+        String key = mLoadingManager.getCacheKey(uri);
+        return key == null ? toCacheKey(uri) : key;
+    }
+
+    private T findInMemoryCache(String cacheKey, Collection<ResourceSpecs<T>> specsList) {
+        if (specsList == null) return null;
+        String key = toMemoryCacheKey(cacheKey, specsList);
+        return key == null ? null : getFromMemoryCache(key);
+    }
+
+    /**
+     * @param source   Source from which given stream was opened, it will be used to reopen the stream if loading should
+     *                 be retried. May be null.
+     * @param metadata Metadata to store along with the resource in disk cache. May be null.
+     */
+    private T saveLoadedResource(String uri, InputStream in, boolean skipDiskCache, StreamSource source,
+                                 CacheMetadata metadata) {
         Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
         if (specsList == null) return null;
 
-        String key = toCacheKey(uri);
+        String key = getCacheKey(uri);
         T res;
-        if (!skipDiskCache && ResourceSpecs.isUseDiskCache(specsList)) {
+        boolean useDiskCache = !skipDiskCache && ResourceSpecs.isUseDiskCache(specsList);
+        // Editor is not available if same resource is being saved right now, so waiting for it instead
+        DiskCache.Editor editor = useDiskCache && mIsStreamingToDiskCache ? mDiskCache.edit(key) : null;
+        if (editor != null) {
+            // Reading straight from given stream while saving it to cached file
+            if (isOutdatedBeforeLoading(uri)) {
+                editor.abort();
+                closeSilently(in);
+                return null;
+            }
+            editor.setMetadata(metadata);
+            res = loadWhileSaving(key, in, editor, specsList);
+        } else if (useDiskCache) {
             // Saving stream to cached file and then reading from this file
-            mDiskCache.save(key, in);
-            InputStream in2 = openFileUriAsInputStream(mDiskCache.get(key));
-            res = loadFromStream(in2, specsList);
+            mDiskCache.save(key, in, metadata);
+            if (isOutdatedBeforeLoading(uri)) return null;
+
+            res = loadFromStream(mDiskCache.open(key), new DiskCacheSource(key), specsList);
         } else {
             // Reading straight from given stream
-            res = loadFromStream(in, specsList);
+            if (isOutdatedBeforeLoading(uri)) {
+                closeSilently(in);
+                return null;
+            }
+            res = loadFromStream(in, source, specsList);
         }
 
-        // Saving in memory cache if needed
-        if (res != null && ResourceSpecs.isUseMemoryCache(specsList)) putToMemoryCache(key, res);
+        saveToMemoryCache(key, res, specsList);
+
+        return res;
+    }
+
+    /**
+     * Loads resource from given stream copying all read data into cached file. Cached file is committed only if
+     * resource is loaded and the whole stream was copied. If loading should be retried (see {@link #onLoadingFailed})
+     * then cached file is committed as well and resource is loaded from it again.
+     */
+    private T loadWhileSaving(String key, InputStream in, DiskCache.Editor editor, Collection<ResourceSpecs<T>> specsList) {
+        TeeInputStream tee = new TeeInputStream(in, editor.getOutputStream());
+        boolean isRetry = false;
+        boolean isSaved = false;
+        T res;
+        try {
+            res = loadFromStream(tee, specsList);
+            isRetry = res == null && onLoadingFailed(specsList);
+            // Decoder may stop reading before the end of stream, so the rest should be copied as well
+            if (res != null || isRetry) isSaved = tee.drain() && editor.commit();
+        } finally {
+            if (!isSaved) editor.abort();
+            closeSilently(in);
+        }
+
+        if (isRetry && isSaved) {
+            if (isVerbose()) Log.d(TAG, "Retrying to load resource from disk cache: " + key);
+            res = loadFromStream(mDiskCache.open(key), new DiskCacheSource(key), specsList);
+        }
+        return res;
+    }
+
+    /**
+     * Whether downloaded resource will be saved into disk cache first, so it can be decoded from cached file by decode
+     * threads. Otherwise it is decoded right from the network stream.
+     */
+    private boolean isDecodedSeparately(String uri) {
+        Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
+        return !mIsStreamingToDiskCache && specsList != null && ResourceSpecs.isUseDiskCache(specsList);
+    }
+
+    private boolean isOutdatedBeforeLoading(String uri) {
+        if (!mLoadingManager.isOutdated(uri)) return false;
+        if (isVerbose()) Log.d(TAG, "Resource was outdated, loading is skipped: " + uri);
+        return true;
+    }
+
+    private static void closeSilently(InputStream in) {
+        if (in != null)
+            try {
+                in.close();
+            } catch (Exception ignored) {
+            }
+    }
 
+    /**
+     * Loads resource from given stream, reopening given source and loading resource again while
+     * {@link #onLoadingFailed} asks for it.
+     */
+    private T loadFromStream(InputStream in, StreamSource source, Collection<ResourceSpecs<T>> specsList) {
+        T res = loadFromStream(in, specsList);
+        while (res == null && source != null && onLoadingFailed(specsList)) {
+            if (isVerbose()) Log.d(TAG, "Retrying to load resource from: " + source);
+            res = loadFromStream(source.open(), specsList);
+        }
         return res;
     }
 
+    /**
+     * Saving in memory cache if needed
+     */
+    private void saveToMemoryCache(String key, T res, Collection<ResourceSpecs<T>> specsList) {
+        if (res != null && ResourceSpecs.isUseMemoryCache(specsList)) {
+            String memoryKey = toMemoryCacheKey(key, specsList);
+            if (memoryKey != null) putToMemoryCache(memoryKey, res);
+        }
+    }
+
     private void notifyLoaded(String uri, T res, boolean fromMemory, boolean fromDisk) {
         mLoadingManager.setResult(uri, res);
         mLoadingManager.setState(uri, LoadingState.WAIT_DISPLAYING);
@@ -170,14 +470,34 @@ public abstract class ResourcesLoader<T> {
 
     private void scheduleDownload(String uri) {
         if (hasInternetConnection()) {
-            mLoadingManager.setState(uri, LoadingState.WAIT_DOWNLOADING);
-            mDownloadThreadPool.submit(new DownloadTask(uri));
+            mDownloadScheduler.schedule(uri, new DownloadTask(uri, null));
         } else {
             if (isVerbose()) Log.d(TAG, "No internet connection is available");
             notifyLoaded(uri, null, true, false);
         }
     }
 
+    /**
+     * Schedules revalidation of expired resource found in disk cache. Resource is loaded from disk cache right away if
+     * stale resources are allowed (see {@link #setStaleWhileRevalidate(boolean)}) or there is no Internet connection.
+     */
+    private void scheduleRevalidation(String uri, String key, CacheMetadata metadata) {
+        if (mIsStaleWhileRevalidate) {
+            if (isVerbose()) Log.d(TAG, "2. Resource in disk cache is expired, loading it and revalidating: " + uri);
+            scheduleLocalLoader(uri, key);
+            if (hasInternetConnection() && mRevalidatingKeys.add(key)) {
+                Map<String, String> headers = getHttpHeaders(uri); // Specs will be gone once resource is loaded
+                mDownloadScheduler.scheduleBackground(uri, new RevalidationTask(uri, key, metadata, headers));
+            }
+        } else if (hasInternetConnection()) {
+            if (isVerbose()) Log.d(TAG, "2. Resource in disk cache is expired, scheduling revalidation: " + uri);
+            mDownloadScheduler.schedule(uri, new DownloadTask(uri, metadata));
+        } else {
+            if (isVerbose()) Log.d(TAG, "2. Resource in disk cache is expired, but there is no Internet connection: " + uri);
+            scheduleLocalLoader(uri, key);
+        }
+    }
+
     /**
      * Checks if the device has Internet connection.
      */
@@ -199,22 +519,91 @@ public abstract class ResourcesLoader<T> {
         return activeNetwork != null && activeNetwork.isConnected();
     }
 
-    private void scheduleLocalLoader(String uri, String cachedFileUri) {
-        mLoadingManager.setState(uri, LoadingState.WAIT_LOADING);
-        mLocalLoaderThreadPool.submit(new LocalLoaderTask(uri, cachedFileUri));
+    /**
+     * @param cacheKey Key of resource in disk cache or {@code null} if resource should be loaded from local uri.
+     */
+    private void scheduleLocalLoader(String uri, String cacheKey) {
+        scheduleTask(mDecodeThreadPool, uri, LoadingState.WAIT_LOADING,
+                new LocalLoaderTask(uri, cacheKey, false, false));
+    }
+
+    /**
+     * Same as {@link #scheduleLocalLoader(String, String)}, but expired resource is revalidated instead of loading (see
+     * {@link #scheduleRevalidation(String, String, CacheMetadata)}). Expiration is checked by decode thread, since
+     * metadata lookup may wait for disk cache index.
+     */
+    private void scheduleCachedLoader(String uri, String cacheKey) {
+        scheduleTask(mDecodeThreadPool, uri, LoadingState.WAIT_LOADING,
+                new LocalLoaderTask(uri, cacheKey, false, true));
+    }
+
+    /**
+     * Hands over resource which was just downloaded into disk cache to decode threads.
+     */
+    private void scheduleDownloadedLoader(String uri, String cacheKey) {
+        scheduleTask(mDecodeThreadPool, uri, LoadingState.WAIT_LOADING,
+                new LocalLoaderTask(uri, cacheKey, true, false));
+    }
+
+    private void scheduleVariantLoader(String uri, T variant) {
+        scheduleTask(mDecodeThreadPool, uri, LoadingState.WAIT_LOADING, new VariantLoaderTask(uri, variant));
+    }
+
+    /**
+     * Queues given task in loading manager. Actual task to execute is chosen by priority only when pool's thread becomes
+     * free, so most recently requested resources are loaded first (see {@link ResourcesLoadingManager}).
+     */
+    private void scheduleTask(ExecutorService pool, String uri, LoadingState state, Runnable task) {
+        if (mLoadingManager.queueTask(uri, state, task)) pool.execute(new QueuedTaskRunner(state));
     }
 
-    private void fillHttpHeaders(HttpURLConnection connection, String uri) {
+    private Map<String, String> getHttpHeaders(String uri) {
         Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
-        if (specsList == null) return;
+        if (specsList == null) return null;
 
         // Getting first specs from set for given URI
         ResourceSpecs<T> lastSpecs = specsList.size() == 0 ? null : specsList.iterator().next();
-        if (lastSpecs == null || lastSpecs.getHeaders() == null) return;
+        return lastSpecs == null ? null : lastSpecs.getHeaders();
+    }
+
+    /**
+     * Looks for resource in memory and disk caches and schedules corresponding loading task.
+     *
+     * @param useVariants Whether resource can be created from another its variant stored in memory cache.
+     */
+    private void manage(String uri, boolean useVariants) {
+        UriHelper uriHelper = new UriHelper(uri);
+        Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
+        String key = getCacheKey(uri);
 
-        // Adding headers to request
-        for (Map.Entry<String, String> pair : lastSpecs.getHeaders().entrySet()) {
-            connection.addRequestProperty(pair.getKey(), pair.getValue());
+        T res = findInMemoryCache(key, specsList);
+        T variant = null;
+        if (res == null && useVariants && specsList != null) variant = findMemoryCacheVariant(key, specsList);
+
+        if (res != null) {
+            if (isVerbose()) Log.d(TAG, "2. Resource is found in memory cache: " + uri);
+            notifyLoaded(uri, res, true, false);
+        } else if (variant != null) {
+            if (isVerbose()) Log.d(TAG, "2. Resource variant is found in memory cache, scheduling loader: " + uri);
+            scheduleVariantLoader(uri, variant);
+        } else if (mDiskCache.isExists(key)) {
+            if (isVerbose())
+                Log.d(TAG, "2. Resource is found in disk cache, scheduling loader: " + uri);
+            if (uriHelper.isRemote()) {
+                scheduleCachedLoader(uri, key);
+            } else {
+                scheduleLocalLoader(uri, key);
+            }
+        } else if (uriHelper.isLocal()) {
+            if (isVerbose())
+                Log.d(TAG, "2. No resources found in cache, scheduling local loader: " + uri);
+            scheduleLocalLoader(uri, null);
+        } else if (uriHelper.isRemote()) {
+            if (isVerbose()) Log.d(TAG, "2. No resources found in cache, scheduling download: " + uri);
+            scheduleDownload(uri);
+        } else {
+            if (isVerbose()) Log.d(TAG, "2. Unknown Uri scheme, skipping resource: " + uri);
+            notifyLoaded(uri, null, true, false);
         }
     }
 
@@ -224,49 +613,11 @@ public abstract class ResourcesLoader<T> {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
             try {
                 while (true) {
-                    String uri;
-
-                    synchronized (mLoadingManager) {
-                        uri = mLoadingManager.getNextUriToManage(false);
-                        boolean isEmptyQueue = mLoadingManager.getNextUriToManage(true) == null;
-
-                        if (uri == null) {
-                            if (isVerbose()) Log.d(TAG, "2. Manager thread is waiting for another resource to load");
-                            if (isEmptyQueue) {
-                                // There are no waiting resources, so we can wait infinitely
-                                mLoadingManager.wait();
-                            } else {
-                                // There is other waiting resource, so we should check it again after a small delay
-                                mLoadingManager.wait(MIN_LOADING_DELAY);
-                            }
-                            continue;
-                        }
-                    }
-
-                    mLoadingManager.setState(uri, LoadingState.MANAGING);
-
-                    UriHelper uriHelper = new UriHelper(uri);
+                    // Sleeps until next resource is due
+                    String uri = mLoadingManager.takeNextUriToManage();
 
                     if (!mLoadingManager.isOutdated(uri)) {
-                        T res = getFromMemoryCache(toCacheKey(uri));
-                        if (res != null) {
-                            if (isVerbose()) Log.d(TAG, "2. Resource is found in memory cache: " + uri);
-                            notifyLoaded(uri, res, true, false);
-                        } else if (mDiskCache.isExists(toCacheKey(uri))) {
-                            if (isVerbose())
-                                Log.d(TAG, "2. Resource is found in disk cache, scheduling loader: " + uri);
-                            scheduleLocalLoader(uri, mDiskCache.get(toCacheKey(uri)));
-                        } else if (uriHelper.isLocal()) {
-                            if (isVerbose())
-                                Log.d(TAG, "2. No resources found in cache, scheduling local loader: " + uri);
-                            scheduleLocalLoader(uri, null);
-                        } else if (uriHelper.isRemote()) {
-                            if (isVerbose()) Log.d(TAG, "2. No resources found in cache, scheduling download: " + uri);
-                            scheduleDownload(uri);
-                        } else {
-                            if (isVerbose()) Log.d(TAG, "2. Unknown Uri scheme, skipping resource: " + uri);
-                            notifyLoaded(uri, null, true, false);
-                        }
+                        manage(uri, true);
                     } else {
                         if (isVerbose())
                             Log.d(TAG, "2. Resource was outdated and will not be loaded (manager thread): " + uri);
@@ -281,9 +632,15 @@ public abstract class ResourcesLoader<T> {
 
     private class DownloadTask extends FailSafeRunnable {
         private String mUri;
+        private CacheMetadata mStaleMetadata;
 
-        public DownloadTask(String uri) {
+        /**
+         * @param staleMetadata Metadata of expired resource in disk cache which should be revalidated, or {@code null}
+         *                      if there is no such resource.
+         */
+        public DownloadTask(String uri, CacheMetadata staleMetadata) {
             mUri = uri;
+            mStaleMetadata = staleMetadata;
         }
 
         @Override
@@ -294,14 +651,15 @@ public abstract class ResourcesLoader<T> {
             if (uri == null) return;
 
             if (!mLoadingManager.isOutdated(uri)) {
-                T res = getFromMemoryCache(toCacheKey(uri));
+                String key = getCacheKey(uri);
+                T res = findInMemoryCache(key, mLoadingManager.getSpecsList(uri));
                 if (res != null) {
                     if (isVerbose())
                         Log.w(TAG, "3. Resource was found in memory cache - no downloading is needed: " + uri);
                     notifyLoaded(uri, res, true, false);
-                } else if (mDiskCache.isExists(toCacheKey(uri))) {
+                } else if (mStaleMetadata == null && mDiskCache.isExists(key)) {
                     if (isVerbose()) Log.w(TAG, "3. Resource was found on disk - no downloading is needed: " + uri);
-                    scheduleLocalLoader(uri, mDiskCache.get(toCacheKey(uri)));
+                    scheduleLocalLoader(uri, key);
                 } else {
                     if (isVerbose()) Log.d(TAG, "3. Starting download process for resource: " + uri);
                     mLoadingManager.setState(uri, LoadingState.DOWNLOADING);
@@ -309,35 +667,82 @@ public abstract class ResourcesLoader<T> {
 
                     // TODO: add progress
 
-                    InputStream in = null;
+                    FetchResponse response = null;
+                    CancellableInputStream in = null;
+                    boolean isHandedOver = false;
+                    boolean isFetched = false;
                     try {
-                        HttpURLConnection connection = mHttpClient.open(new URL(uri));
-                        fillHttpHeaders(connection, uri);
-
-                        int statusCode = connection.getResponseCode();
-                        boolean isOk = statusCode / 100 == 2;
+                        Map<String, String> headers = getHttpHeaders(uri);
+                        if (mStaleMetadata != null) headers = CacheHeaders.addConditionalHeaders(headers, mStaleMetadata);
+
+                        long startTime = System.currentTimeMillis();
+                        response = mFetcher.fetch(uri, headers);
+                        long latency = System.currentTimeMillis() - startTime;
+                        int statusCode = response.getStatusCode();
+
+                        if (mStaleMetadata != null && statusCode == CacheHeaders.HTTP_NOT_MODIFIED) {
+                            isFetched = true;
+                            mDiskCache.setMetadata(key, CacheHeaders.toMetadata(response, mStaleMetadata, mDefaultMaxAge));
+                            if (isVerbose()) Log.d(TAG, "3. Resource is not modified, scheduling loader: " + uri);
+                            scheduleLocalLoader(uri, key);
+                            isHandedOver = true;
+                        } else if (response.isSuccessful()) {
+                            isFetched = true;
+                            CacheMetadata metadata = CacheHeaders.toMetadata(response, null, mDefaultMaxAge);
+                            boolean isStorable = CacheHeaders.isStorable(response);
+                            if (!isStorable && mStaleMetadata != null) mDiskCache.delete(key);
+                            in = new CancellableInputStream(response.getStream(), new DownloadCancelSignal(uri));
+                            if (isStorable && isDecodedSeparately(uri)) {
+                                // Persisting into disk cache here and leaving decoding to decode threads
+                                boolean isSaved = mDiskCache.save(key, in, metadata);
+                                if (isSaved && !isOutdatedBeforeLoading(uri)) {
+                                    scheduleDownloadedLoader(uri, key);
+                                    isHandedOver = true;
+                                }
+                            } else {
+                                res = saveLoadedResource(uri, in, !isStorable, null, metadata);
+                            }
 
-                        if (isOk) {
-                            in = connection.getInputStream();
-                            res = saveLoadedResource(uri, in, false);
-                            if (isVerbose())
-                                Log.d(TAG, "3. Resource downloading is " + (res == null ? "failed" : "succeeded") + ": " + uri);
+                            if (in.isCancelled()) {
+                                if (isVerbose()) Log.d(TAG, "3. Resource was outdated, downloading is cancelled: " + uri);
+                            } else {
+                                mDownloadScheduler.onDownloaded(latency, in.getReadCount());
+                                if (isVerbose() && isHandedOver) {
+                                    Log.d(TAG, "3. Resource is downloaded, scheduling loader: " + uri);
+                                } else if (isVerbose()) {
+                                    Log.d(TAG, "3. Resource downloading is " + (res == null ? "failed" : "succeeded") + ": " + uri);
+                                }
+                            }
                         } else {
+                            // Server errors and throttling are signs of overload, other errors are not related to load
+                            if (statusCode / 100 == 5 || statusCode == 429) mDownloadScheduler.onDownloadFailed();
                             if (isVerbose())
                                 Log.d(TAG, "3. Resource downloading is failed, http status code " + statusCode + ": " + uri);
                         }
                     } catch (Exception e) {
+                        if (e instanceof IOException && !(in != null && in.isCancelled())) {
+                            mDownloadScheduler.onDownloadFailed((IOException) e);
+                        }
                         if (isVerbose())
                             Log.d(TAG, "3. Exception while downloading resource: " + e.getMessage() + " (" + uri + ")");
                     } finally {
-                        if (in != null)
-                            try {
-                                in.close();
-                            } catch (Exception ignored) {
+                        if (response != null) {
+                            if (in != null && in.isCancelled()) {
+                                // Rest of response will not be read, so connection cannot be reused
+                                response.abort();
+                            } else {
+                                response.close();
                             }
+                        }
                     }
 
-                    notifyLoaded(uri, res, false, false);
+                    if (!isFetched && mStaleMetadata != null && !mLoadingManager.isOutdated(uri)) {
+                        // Expired resource is better than nothing
+                        if (isVerbose()) Log.d(TAG, "3. Resource cannot be revalidated, loading expired one: " + uri);
+                        scheduleLocalLoader(uri, key);
+                    } else if (!isHandedOver) {
+                        notifyLoaded(uri, res, false, false);
+                    }
                 }
             } else {
                 if (isVerbose()) Log.d(TAG, "3. Resource was outdated before downloading: " + uri);
@@ -346,14 +751,99 @@ public abstract class ResourcesLoader<T> {
 
     }
 
+    /**
+     * Revalidates expired resource in disk cache in background, while expired resource is already loaded (see
+     * {@link #setStaleWhileRevalidate(boolean)}). Updated resource is only saved into disk cache.
+     */
+    private class RevalidationTask extends FailSafeRunnable {
+        private String mUri;
+        private String mCacheKey;
+        private CacheMetadata mStaleMetadata;
+        private Map<String, String> mHeaders;
+
+        public RevalidationTask(String uri, String cacheKey, CacheMetadata staleMetadata, Map<String, String> headers) {
+            mUri = uri;
+            mCacheKey = cacheKey;
+            mStaleMetadata = staleMetadata;
+            mHeaders = headers;
+        }
+
+        @Override
+        protected void runSafe() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND + 8);
+
+            FetchResponse response = null;
+            try {
+                long startTime = System.currentTimeMillis();
+                response = mFetcher.fetch(mUri, CacheHeaders.addConditionalHeaders(mHeaders, mStaleMetadata));
+                long latency = System.currentTimeMillis() - startTime;
+                int statusCode = response.getStatusCode();
+
+                if (statusCode == CacheHeaders.HTTP_NOT_MODIFIED) {
+                    mDiskCache.setMetadata(mCacheKey, CacheHeaders.toMetadata(response, mStaleMetadata, mDefaultMaxAge));
+                    if (isVerbose()) Log.d(TAG, "Resource in disk cache is not modified: " + mUri);
+                } else if (response.isSuccessful() && !CacheHeaders.isStorable(response)) {
+                    // Previous version should not be served anymore, while the new one should not be persisted
+                    mDiskCache.delete(mCacheKey);
+                    if (isVerbose()) Log.d(TAG, "Resource in disk cache is removed, response is not storable: " + mUri);
+                } else if (response.isSuccessful()) {
+                    CacheMetadata metadata = CacheHeaders.toMetadata(response, null, mDefaultMaxAge);
+                    CancellableInputStream in = new CancellableInputStream(response.getStream(), NEVER_CANCELLED);
+                    boolean isSaved = mDiskCache.save(mCacheKey, in, metadata);
+                    mDownloadScheduler.onDownloaded(latency, in.getReadCount());
+                    if (isVerbose()) Log.d(TAG, "Resource in disk cache is " + (isSaved ? "updated: " : "not updated: ") + mUri);
+                } else {
+                    if (statusCode / 100 == 5 || statusCode == 429) mDownloadScheduler.onDownloadFailed();
+                    if (isVerbose()) Log.d(TAG, "Resource revalidation is failed, http status code " + statusCode + ": " + mUri);
+                }
+            } catch (IOException e) {
+                mDownloadScheduler.onDownloadFailed(e);
+                if (isVerbose()) Log.d(TAG, "Exception while revalidating resource: " + e.getMessage() + " (" + mUri + ")");
+            } finally {
+                if (response != null) response.close();
+                mRevalidatingKeys.remove(mCacheKey);
+            }
+        }
+    }
+
+    /**
+     * Cancels download once all specs objects waiting for the resource are outdated, unless download should be finished
+     * into disk cache (see {@link #setFinishOutdatedDownloads(boolean)}).
+     */
+    private class DownloadCancelSignal implements CancellableInputStream.CancelSignal {
+        private final String mUri;
+        private final boolean mIsSavingToDisk;
+
+        DownloadCancelSignal(String uri) {
+            mUri = uri;
+            Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
+            mIsSavingToDisk = specsList != null && ResourceSpecs.isUseDiskCache(specsList);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return !(mIsFinishOutdatedDownloads && mIsSavingToDisk) && mLoadingManager.isOutdated(mUri);
+        }
+    }
+
     private class LocalLoaderTask extends FailSafeRunnable {
 
         private String mUri;
-        private String mCachedFileUri;
-
-        public LocalLoaderTask(String uri, String cachedFileUri) {
+        private String mCacheKey;
+        private boolean mIsDownloaded;
+        private boolean mIsCheckExpiration;
+
+        /**
+         * @param isDownloaded      Whether resource was just downloaded into disk cache, so it should be delivered as
+         *                          downloaded one rather than as loaded from disk.
+         * @param isCheckExpiration Whether resource in disk cache should be revalidated instead of loading if it is
+         *                          expired, see {@link #scheduleRevalidation(String, String, CacheMetadata)}.
+         */
+        public LocalLoaderTask(String uri, String cacheKey, boolean isDownloaded, boolean isCheckExpiration) {
             mUri = uri;
-            mCachedFileUri = cachedFileUri;
+            mCacheKey = cacheKey;
+            mIsDownloaded = isDownloaded;
+            mIsCheckExpiration = isCheckExpiration;
         }
 
         @Override
@@ -364,25 +854,40 @@ public abstract class ResourcesLoader<T> {
             if (uri == null) return;
 
             if (!mLoadingManager.isOutdated(uri)) {
-                T res = getFromMemoryCache(toCacheKey(uri));
+                T res = findInMemoryCache(getCacheKey(uri), mLoadingManager.getSpecsList(uri));
                 if (res != null) {
                     if (isVerbose()) Log.w(TAG, "4. Resource is found in memory cache: " + uri);
                     notifyLoaded(uri, res, true, false);
-                } else if (mCachedFileUri != null) {
+                } else if (mCacheKey != null) {
+                    CacheMetadata metadata = mIsCheckExpiration ? mDiskCache.getMetadata(mCacheKey) : null;
+                    if (metadata != null && metadata.isExpired()) {
+                        mLoadingManager.setState(uri, LoadingState.MANAGING);
+                        scheduleRevalidation(uri, mCacheKey, metadata);
+                        return;
+                    }
+
+                    // Reading cached file directly, without resolving its uri
+                    InputStream in = mDiskCache.open(mCacheKey);
+                    if (in == null) {
+                        if (isVerbose()) Log.d(TAG, "4. Resource was removed from disk cache: " + uri);
+                        mLoadingManager.setState(uri, LoadingState.MANAGING);
+                        manage(uri, false);
+                        return;
+                    }
+
                     if (isVerbose()) Log.d(TAG, "4. Loading resource from disk cache: " + uri);
 
                     mLoadingManager.setState(uri, LoadingState.LOADING);
 
-                    InputStream in = openFileUriAsInputStream(mCachedFileUri);
-                    res = saveLoadedResource(mUri, in, true);
-                    notifyLoaded(uri, res, false, true);
+                    res = saveLoadedResource(mUri, in, true, new DiskCacheSource(mCacheKey), null);
+                    notifyLoaded(uri, res, false, !mIsDownloaded);
                 } else {
                     if (isVerbose()) Log.d(TAG, "4. Loading local resource: " + uri);
 
                     mLoadingManager.setState(uri, LoadingState.LOADING);
 
                     InputStream in = openFileUriAsInputStream(mUri);
-                    res = saveLoadedResource(mUri, in, false);
+                    res = saveLoadedResource(mUri, in, false, new FileUriSource(mUri), null);
                     notifyLoaded(uri, res, false, true);
                 }
 
@@ -395,6 +900,110 @@ public abstract class ResourcesLoader<T> {
 
     }
 
+    private class VariantLoaderTask extends FailSafeRunnable {
+
+        private String mUri;
+        private T mVariant;
+
+        public VariantLoaderTask(String uri, T variant) {
+            mUri = uri;
+            mVariant = variant;
+        }
+
+        @Override
+        protected void runSafe() {
+            try {
+                load();
+            } finally {
+                if (mVariant != null) releaseResource(mVariant);
+            }
+        }
+
+        private void load() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
+
+            String uri = mUri;
+            if (uri == null) return;
+
+            if (!mLoadingManager.isOutdated(uri)) {
+                Set<ResourceSpecs<T>> specsList = mLoadingManager.getSpecsList(uri);
+                if (specsList == null) return;
+
+                if (isVerbose()) Log.d(TAG, "4. Loading resource from its variant in memory cache: " + uri);
+                mLoadingManager.setState(uri, LoadingState.LOADING);
+
+                T res = loadFromVariant(mVariant, specsList);
+                if (res != null) {
+                    saveToMemoryCache(getCacheKey(uri), res, specsList);
+                    notifyLoaded(uri, res, true, false);
+                } else {
+                    if (isVerbose()) Log.d(TAG, "4. Resource cannot be loaded from its variant: " + uri);
+                    manage(uri, false);
+                }
+            } else {
+                if (isVerbose()) Log.d(TAG, "4. Resource was outdated before loading: " + uri);
+            }
+        }
+
+    }
+
+    /**
+     * Source from which resource stream can be opened once again if loading should be retried.
+     */
+    private interface StreamSource {
+        InputStream open();
+    }
+
+    private class FileUriSource implements StreamSource {
+        private final String mFileUri;
+
+        FileUriSource(String fileUri) {
+            mFileUri = fileUri;
+        }
+
+        @Override
+        public InputStream open() {
+            return openFileUriAsInputStream(mFileUri);
+        }
+
+        @Override
+        public String toString() {
+            return mFileUri;
+        }
+    }
+
+    private class DiskCacheSource implements StreamSource {
+        private final String mKey;
+
+        DiskCacheSource(String key) {
+            mKey = key;
+        }
+
+        @Override
+        public InputStream open() {
+            return mDiskCache.open(mKey);
+        }
+
+        @Override
+        public String toString() {
+            return "disk cache (" + mKey + ")";
+        }
+    }
+
+    private class QueuedTaskRunner implements Runnable {
+        private LoadingState mState;
+
+        public QueuedTaskRunner(LoadingState state) {
+            mState = state;
+        }
+
+        @Override
+        public void run() {
+            Runnable task = mLoadingManager.pollNextTask(mState);
+            if (task != null) task.run();
+        }
+    }
+
     private abstract static class FailSafeRunnable implements Runnable {
 
         @Override
@@ -416,9 +1025,11 @@ public abstract class ResourcesLoader<T> {
         public static final int ACTION_ON_LOADED_FROM_MEMORY = 2;
         public static final int ACTION_ON_LOADED_FROM_DISK = 3;
 
+        private ResourcesLoader<T> mLoader;
         private ResourcesLoadingManager<T> mLoadingManager;
 
-        private LoadHandler(ResourcesLoadingManager<T> loadingManager) {
+        private LoadHandler(ResourcesLoader<T> loader, ResourcesLoadingManager<T> loadingManager) {
+            mLoader = loader;
             mLoadingManager = loadingManager;
         }
 
@@ -444,6 +1055,7 @@ public abstract class ResourcesLoader<T> {
                     Set<ResourceSpecs<T>> set = mLoadingManager.remove(uri);
                     for (ResourceSpecs<T> specs : set)
                         specs.onLoaded(res, fromMemory, fromDisk);
+                    if (res != null) mLoader.releaseResource(res);
                     break;
                 }
             }
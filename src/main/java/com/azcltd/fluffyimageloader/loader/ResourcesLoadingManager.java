@@ -1,6 +1,7 @@
 package com.azcltd.fluffyimageloader.loader;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class helps synchronize and manage resources' Uris queue. <br/>
@@ -8,93 +9,175 @@ import java.util.*;
  * It also provide functionality to maintain set of "specs objects" (see {@code ResourceSpecs} class) for one Uri (i.e. if resource from
  * given Uri was already scheduled for loading we can avoid scheduling another loading process for same Uri). <br/>
  * <br/>
- * Also each Uri can be in several loading states (see {@code LoadingState} enum).
+ * Also each Uri can be in several loading states (see {@code LoadingState} enum).<br/>
+ * <br/>
+ * Uris waiting to be managed are kept in a queue ordered by their start time (see {@code ResourceSpecs.getDelay()}), so
+ * manager thread can sleep exactly until next Uri is due (see {@link #takeNextUriToManage()}).<br/>
+ * <br/>
+ * Due Uris and Uris waiting for download or loading are taken by priority (see {@code ResourceSpecs.getPriority()}) and
+ * then newest first, so resources requested for currently visible views are loaded before resources requested for views
+ * which were already scrolled away. Uri becomes the newest one again each time another specs object is added for it.<br/>
+ * <br/>
+ * Waiting tasks can be split into groups (e.g. by host, see {@link #queueTask(String, LoadingState, Runnable, String)}),
+ * each group has its own queue, so groups which cannot be started right now are skipped without touching their
+ * tasks.<br/>
+ * <br/>
+ * Specs objects notify manager when they are reused for another Uri (see {@code ResourceSpecs.setUri()}), so each entry
+ * contains only specs objects which are still waiting for its Uri. Uri is removed from the queue as soon as there are no
+ * waiting specs objects left.<br/>
+ * <br/>
+ * All data of a Uri is kept in a single entry. Reading methods do not lock the manager: entries are stored in concurrent
+ * map and sets of specs objects are never modified, a modified copy is stored instead. Modifying methods are
+ * synchronized, since they also maintain the queues.
  */
 class ResourcesLoadingManager<T> {
 
-    private Map<String, Set<ResourceSpecs<T>>> mMap = new LinkedHashMap<String, Set<ResourceSpecs<T>>>();
-    private Map<String, LoadingState> mStateMap = new LinkedHashMap<String, LoadingState>();
-    private Map<String, Long> mStartTimeMap = new HashMap<String, Long>();
-    private Map<String, T> mResultsMap = new HashMap<String, T>();
+    private static final String NO_GROUP = "";
+
+    private final ConcurrentHashMap<String, Entry<T>> mEntries = new ConcurrentHashMap<String, Entry<T>>();
+
+    /** Uris waiting to be managed which are not due yet, ordered by start time */
+    private PriorityQueue<QueuedUri> mDelayedQueue = new PriorityQueue<QueuedUri>(11, START_TIME_ORDER);
+    /** Due Uris waiting in one of WAIT_* states, ordered by priority and then newest first */
+    private Map<LoadingState, ReadyQueue> mReadyQueues = new EnumMap<LoadingState, ReadyQueue>(LoadingState.class);
+    private long mQueueSequence;
+    private volatile OnTaskRequeuedListener mOnTaskRequeuedListener;
+
+    /**
+     * Sets listener which is notified once queued task is queued again (see {@link #addSpecs(ResourceSpecs, String)}),
+     * so that another worker can be started for it.
+     */
+    void setOnTaskRequeuedListener(OnTaskRequeuedListener listener) {
+        mOnTaskRequeuedListener = listener;
+    }
 
     /**
      * Adding given specs object to loading queue. If corresponding resource Uri was already scheduled for loading but was not yet loaded,
      * then this specs object will be appended to the list of pending specs for given Uri. When resource for given Uri will be loaded all
      * corresponding "waiting" specs objects will be notified. <br/>
      * <br/>
-     * After specs were added {@code this.notify()} method will be called to wake up first waiting thread.
+     * If specs object is the first one for its Uri then Uri is queued for managing and {@code this.notify()} method will be
+     * called to wake up waiting manager thread.<br/>
+     * <br/>
+     * If Uri is queued again, manager thread is woken up or {@link OnTaskRequeuedListener} is notified (outside of
+     * manager's lock), so that updated queue item does not wait for unrelated requests.
+     *
+     * @param cacheKey Cache key of specs' Uri, it is stored along with Uri so that it is computed only once. May be null.
      */
-    public synchronized void addSpecs(ResourceSpecs<T> specs) {
+    public void addSpecs(ResourceSpecs<T> specs, String cacheKey) {
+        LoadingState requeuedState = addSpecsLocked(specs, cacheKey);
+        OnTaskRequeuedListener listener = mOnTaskRequeuedListener;
+        if (requeuedState != null && listener != null) listener.onTaskRequeued(requeuedState);
+    }
+
+    /**
+     * @return Waiting state of queued task if it was queued again, {@code null} otherwise.
+     */
+    private synchronized LoadingState addSpecsLocked(ResourceSpecs<T> specs, String cacheKey) {
         String uri = specs.getUri();
-        Set<ResourceSpecs<T>> list = mMap.get(uri);
-        if (list == null) {
-            list = new HashSet<ResourceSpecs<T>>();
-            mMap.put(uri, list);
-            mStartTimeMap.put(uri, System.currentTimeMillis() + specs.getDelay());
-        }
-        list.add(specs);
+        specs.setLoadingManager(this);
+        Entry<T> entry = mEntries.get(uri);
+        if (entry == null) {
+            entry = new Entry<T>(cacheKey);
+            entry.addSpecs(specs);
+            entry.state = LoadingState.WAIT_MANAGING;
+            mEntries.put(uri, entry);
 
-        LoadingState state = mStateMap.get(uri);
-        if (state == null) {
-            mStateMap.put(uri, LoadingState.WAIT_MANAGING);
-        } else if (state == LoadingState.DOWNLOADING) {
-            specs.onStart();
-        }
+            QueuedUri item = new QueuedUri(uri, LoadingState.WAIT_MANAGING, null, NO_GROUP,
+                    System.currentTimeMillis() + specs.getDelay(), specs.getPriority(), mQueueSequence++);
+            entry.queued = item;
+            mDelayedQueue.add(item);
+            notify();
+            return null;
+        } else {
+            entry.addSpecs(specs);
+            if (entry.state == LoadingState.DOWNLOADING) specs.onStart();
 
-        notify();
+            QueuedUri item = entry.queued;
+            if (item != null) {
+                // Uri is requested again, so it should be taken before older ones (and with highest requested priority)
+                QueuedUri updated = new QueuedUri(uri, item.state, item.task, item.group, item.startTime,
+                        ResourceSpecs.getPriority(entry.specs), mQueueSequence++);
+                entry.queued = updated;
+                if (item.state == LoadingState.WAIT_MANAGING && item.startTime > System.currentTimeMillis()) {
+                    mDelayedQueue.add(updated);
+                } else {
+                    getReadyQueue(item.state).add(updated);
+                }
+
+                if (item.state == LoadingState.WAIT_MANAGING) {
+                    notify();
+                } else {
+                    return item.state;
+                }
+            }
+            return null;
+        }
     }
 
     /**
-     * @return Snapshot (copy) set of specs objects currently waiting for given Uri to be loaded.<br/>
+     * @return Snapshot (unmodifiable) set of specs objects currently waiting for given Uri to be loaded.<br/>
      *         May return {@code null} if given Uri is no more in the loading queue. I.e. given Uri was already loaded and all waiting specs
      *         are already notified. Or if there are no more valid (not outdated) specs objects for given Uri.
      * @see {@link #isOutdated(String)} method
      */
-    public synchronized Set<ResourceSpecs<T>> getSpecsList(String uri) {
-        return mMap.containsKey(uri) ? new HashSet<ResourceSpecs<T>>(mMap.get(uri)) : null;
+    public Set<ResourceSpecs<T>> getSpecsList(String uri) {
+        Entry<T> entry = mEntries.get(uri);
+        return entry == null ? null : entry.specs;
     }
 
     /**
-     * Specs object may be reused several times and new resource Uri can be set for loading. If another Uris was set for some of waiting
-     * specs objects we should remove them from set of waiting objects for given Uri.<br/>
+     * Specs object may be reused several times and new resource Uri can be set for loading. Such specs objects are removed from set of
+     * waiting objects for their previous Uri, see {@link #onSpecsUriChanged(ResourceSpecs, String)}.<br/>
      * <br/>
      * This approach is designed for loading images into ListView or similar views where if items were scrolled very fast we should avoid
-     * loading "outdated" and show them in wrong positions in list.
+     * loading "outdated" and show them in wrong positions in list.<br/>
+     * <br/>
+     * Does not lock the manager and does not iterate specs objects, so it can be called often (e.g. while downloading).
      *
      * @param uri
      * @return True if all corresponding specs objects for given {@code uri} were outdated. False otherwise.
      */
-    public synchronized boolean isOutdated(String uri) {
-        Set<ResourceSpecs<T>> set = mMap.get(uri);
-        if (set == null) return true;
+    public boolean isOutdated(String uri) {
+        return !mEntries.containsKey(uri);
+    }
 
-        Iterator<ResourceSpecs<T>> iter = set.iterator();
-        while (iter.hasNext()) {
-            String actualUri = iter.next().getUri();
-            if (actualUri == null || !actualUri.equals(uri)) iter.remove();
-        }
+    /**
+     * Called when Uri of given specs object is changed. Specs object is removed from the set of specs objects waiting for
+     * its old Uri. Old Uri is removed from the queue if there are no more waiting specs objects, so its loading can be
+     * cancelled.
+     */
+    synchronized void onSpecsUriChanged(ResourceSpecs<T> specs, String oldUri) {
+        Entry<T> entry = mEntries.get(oldUri);
+        if (entry == null || !entry.specs.contains(specs)) return;
 
-        if (set.isEmpty()) {
-            remove(uri);
-            return true;
-        } else {
-            return false;
-        }
+        entry.removeSpecs(specs);
+        if (entry.specs.isEmpty()) remove(oldUri);
+    }
+
+    /**
+     * @return Cache key stored for given Uri or {@code null} if given Uri is not in queue.
+     */
+    public String getCacheKey(String uri) {
+        Entry<T> entry = mEntries.get(uri);
+        return entry == null ? null : entry.cacheKey;
     }
 
     /**
      * Method to retrieve stored loaded object for given Uri.
      */
-    public synchronized T getResult(String uri) {
-        return mResultsMap.get(uri);
+    public T getResult(String uri) {
+        Entry<T> entry = mEntries.get(uri);
+        return entry == null ? null : entry.result;
     }
 
     /**
      * Method for storing loaded object for given Uri.<br/>
      * Do nothing if given Uri is not in queue.
      */
-    public synchronized void setResult(String uri, T res) {
-        if (mMap.containsKey(uri)) mResultsMap.put(uri, res);
+    public void setResult(String uri, T res) {
+        Entry<T> entry = mEntries.get(uri);
+        if (entry != null) entry.result = res;
     }
 
     /**
@@ -103,10 +186,9 @@ class ResourcesLoadingManager<T> {
      * @return May return {@code null} if specified {@code uri} was already deleted from queue (i.e. all specs were outdated)
      */
     public synchronized Set<ResourceSpecs<T>> remove(String uri) {
-        mResultsMap.remove(uri);
-        mStateMap.remove(uri);
-        mStartTimeMap.remove(uri);
-        return mMap.remove(uri);
+        // Corresponding queue item (if any) will be skipped later
+        Entry<T> entry = mEntries.remove(uri);
+        return entry == null ? null : entry.specs;
     }
 
     /**
@@ -115,8 +197,9 @@ class ResourcesLoadingManager<T> {
      *
      * @see LoadingState
      */
-    public synchronized void setState(String uri, LoadingState state) {
-        if (mMap.containsKey(uri)) mStateMap.put(uri, state);
+    public void setState(String uri, LoadingState state) {
+        Entry<T> entry = mEntries.get(uri);
+        if (entry != null) entry.state = state;
     }
 
     /**
@@ -125,28 +208,236 @@ class ResourcesLoadingManager<T> {
      * @return Loading state. May return {@code null} if given Uri was already removed from loading queue.
      * @see LoadingState
      */
-    public synchronized LoadingState getState(String uri) {
-        return mStateMap.get(uri);
+    public LoadingState getState(String uri) {
+        Entry<T> entry = mEntries.get(uri);
+        return entry == null ? null : entry.state;
     }
 
     /**
-     * Finds and returns first Uri waiting to be managed.
+     * Waits until there is due Uri waiting to be managed (or until new Uri is added if queue is empty), removes Uri with
+     * highest priority (newest one among Uris with same priority) from the queue and moves it into
+     * {@literal LoadingState.MANAGING} state.
      *
-     * @return First Uri to process. May return {@code null} if no Uris are waiting to be managed.
-     * @see {@literal LoadingState.WAIT_MANAGING}
-     */
-    public synchronized String getNextUriToManage(boolean skipDelayCheck) {
-        for (String uri : mStateMap.keySet()) {
-            if (mStateMap.get(uri) == LoadingState.WAIT_MANAGING
-                    && (skipDelayCheck || System.currentTimeMillis() - mStartTimeMap.get(uri) > 0)) {
-                return uri;
+     * @return Next Uri to process, never {@code null}.
+     * @throws InterruptedException if waiting thread was interrupted.
+     */
+    public synchronized String takeNextUriToManage() throws InterruptedException {
+        ReadyQueue readyQueue = getReadyQueue(LoadingState.WAIT_MANAGING);
+        while (true) {
+            long now = System.currentTimeMillis();
+            QueuedUri delayed;
+            while ((delayed = mDelayedQueue.peek()) != null && (getActualEntry(delayed) == null || delayed.startTime <= now)) {
+                mDelayedQueue.poll();
+                if (getActualEntry(delayed) != null) readyQueue.add(delayed);
+            }
+
+            QueuedUri item = readyQueue.poll(null);
+            if (item != null) {
+                mEntries.get(item.uri).state = LoadingState.MANAGING;
+                return item.uri;
+            }
+
+            if (delayed == null) {
+                wait(); // There are no waiting resources, so we can wait infinitely
+            } else {
+                wait(delayed.startTime - now); // Waking up earlier if new Uri is added
             }
         }
-        return null;
+    }
+
+    /**
+     * Moves given Uri into given waiting state and queues given task, which should be executed once there is a free
+     * worker thread, see {@link #pollNextTask(LoadingState)}.<br/>
+     * Do nothing if given Uri is not in queue.
+     *
+     * @return false if given Uri is not in queue.
+     */
+    public boolean queueTask(String uri, LoadingState state, Runnable task) {
+        return queueTask(uri, state, task, NO_GROUP);
+    }
+
+    /**
+     * Same as {@link #queueTask(String, LoadingState, Runnable)} but puts task into given group, so that whole group can
+     * be skipped when polling (see {@link #pollNextTask(LoadingState, GroupFilter)}).
+     */
+    public synchronized boolean queueTask(String uri, LoadingState state, Runnable task, String group) {
+        Entry<T> entry = mEntries.get(uri);
+        if (entry == null) return false;
+
+        entry.state = state;
+        QueuedUri item = new QueuedUri(uri, state, task, group, 0L, ResourceSpecs.getPriority(entry.specs),
+                mQueueSequence++);
+        entry.queued = item;
+        getReadyQueue(state).add(item);
+        return true;
+    }
+
+    /**
+     * Removes task of Uri with highest priority (newest one among Uris with same priority) waiting in given state.
+     *
+     * @return Task to execute or {@code null} if there are no Uris waiting in given state.
+     */
+    public synchronized Runnable pollNextTask(LoadingState state) {
+        QueuedUri item = getReadyQueue(state).poll(null);
+        return item == null ? null : item.task;
+    }
+
+    /**
+     * Same as {@link #pollNextTask(LoadingState)} but skips groups which are not accepted by given filter. Only heads of
+     * groups queues are compared, so it takes time proportional to number of groups with waiting tasks, not to number
+     * of skipped tasks.
+     */
+    public synchronized Runnable pollNextTask(LoadingState state, GroupFilter filter) {
+        QueuedUri item = getReadyQueue(state).poll(filter);
+        return item == null ? null : item.task;
+    }
+
+    private ReadyQueue getReadyQueue(LoadingState state) {
+        ReadyQueue queue = mReadyQueues.get(state);
+        if (queue == null) {
+            queue = new ReadyQueue();
+            mReadyQueues.put(state, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * @return Entry for which given queue item is actual or {@code null} if Uri was removed or queued again.
+     */
+    private Entry<T> getActualEntry(QueuedUri item) {
+        Entry<T> entry = mEntries.get(item.uri);
+        return entry != null && entry.queued == item ? entry : null;
+    }
+
+    interface GroupFilter {
+        boolean accept(String group);
+    }
+
+    interface OnTaskRequeuedListener {
+        /**
+         * Called when task waiting in given state is queued again, another worker should be started to poll it.
+         */
+        void onTaskRequeued(LoadingState state);
     }
 
     public static enum LoadingState {
         WAIT_MANAGING, MANAGING, WAIT_DOWNLOADING, DOWNLOADING, WAIT_LOADING, LOADING, WAIT_DISPLAYING;
     }
 
+    private static final Comparator<QueuedUri> START_TIME_ORDER = new Comparator<QueuedUri>() {
+        @Override
+        public int compare(QueuedUri item1, QueuedUri item2) {
+            if (item1.startTime != item2.startTime) return item1.startTime < item2.startTime ? -1 : 1;
+            return compareLongs(item1.sequence, item2.sequence);
+        }
+    };
+
+    private static final Comparator<QueuedUri> READY_ORDER = new Comparator<QueuedUri>() {
+        @Override
+        public int compare(QueuedUri item1, QueuedUri item2) {
+            if (item1.priority != item2.priority) return item1.priority > item2.priority ? -1 : 1;
+            return compareLongs(item2.sequence, item1.sequence); // Newest first
+        }
+    };
+
+    private static int compareLongs(long value1, long value2) {
+        return value1 < value2 ? -1 : (value1 == value2 ? 0 : 1);
+    }
+
+    private static class Entry<T> {
+        final String cacheKey;
+        /** Unmodifiable set, replaced with modified copy on each change */
+        volatile Set<ResourceSpecs<T>> specs = Collections.emptySet();
+        volatile LoadingState state;
+        volatile T result;
+        /** Actual queue item of this entry, guarded by manager's lock */
+        QueuedUri queued;
+
+        Entry(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+
+        void addSpecs(ResourceSpecs<T> item) {
+            Set<ResourceSpecs<T>> copy = new HashSet<ResourceSpecs<T>>(specs);
+            copy.add(item);
+            specs = Collections.unmodifiableSet(copy);
+        }
+
+        void removeSpecs(ResourceSpecs<T> item) {
+            Set<ResourceSpecs<T>> copy = new HashSet<ResourceSpecs<T>>(specs);
+            copy.remove(item);
+            specs = Collections.unmodifiableSet(copy);
+        }
+    }
+
+    /**
+     * Queue of due Uris waiting in a single state. Uris are kept in separate queue per group, empty queues are removed.
+     */
+    private class ReadyQueue {
+        final Map<String, PriorityQueue<QueuedUri>> groups = new HashMap<String, PriorityQueue<QueuedUri>>();
+
+        void add(QueuedUri item) {
+            PriorityQueue<QueuedUri> queue = groups.get(item.group);
+            if (queue == null) {
+                queue = new PriorityQueue<QueuedUri>(11, READY_ORDER);
+                groups.put(item.group, queue);
+            }
+            queue.add(item);
+        }
+
+        /**
+         * Removes item with highest priority among heads of groups accepted by given filter.
+         *
+         * @param filter Groups filter, {@code null} to accept all groups.
+         */
+        QueuedUri poll(GroupFilter filter) {
+            PriorityQueue<QueuedUri> best = null;
+            for (Iterator<Map.Entry<String, PriorityQueue<QueuedUri>>> iterator = groups.entrySet().iterator();
+                 iterator.hasNext(); ) {
+                Map.Entry<String, PriorityQueue<QueuedUri>> group = iterator.next();
+                QueuedUri head = peekActual(group.getValue());
+                if (head == null) {
+                    iterator.remove();
+                } else if ((filter == null || filter.accept(group.getKey()))
+                        && (best == null || READY_ORDER.compare(head, best.peek()) < 0)) {
+                    best = group.getValue();
+                }
+            }
+            if (best == null) return null;
+
+            QueuedUri item = best.poll();
+            mEntries.get(item.uri).queued = null;
+            return item;
+        }
+
+        private QueuedUri peekActual(PriorityQueue<QueuedUri> queue) {
+            QueuedUri item;
+            while ((item = queue.peek()) != null && getActualEntry(item) == null) {
+                queue.poll(); // Skipping items of removed or queued again Uris
+            }
+            return item;
+        }
+    }
+
+    private static class QueuedUri {
+        final String uri;
+        final LoadingState state;
+        final Runnable task;
+        final String group;
+        final long startTime;
+        final int priority;
+        final long sequence;
+
+        QueuedUri(String uri, LoadingState state, Runnable task, String group, long startTime, int priority,
+                  long sequence) {
+            this.uri = uri;
+            this.state = state;
+            this.task = task;
+            this.group = group;
+            this.startTime = startTime;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
 }
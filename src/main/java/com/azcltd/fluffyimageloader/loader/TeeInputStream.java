@@ -0,0 +1,84 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream which copies all read bytes into given output stream.<br/>
+ * <br/>
+ * Failed writes do not affect reading: once output stream fails nothing is written anymore, see {@link #drain()}.
+ * Closing this stream does not close underlying streams, so remaining data can be copied with {@link #drain()} after
+ * reader closed the stream.
+ */
+class TeeInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOut;
+    private boolean mIsWriteFailed;
+
+    TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        mOut = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) write(new byte[]{(byte) b}, 0, 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int c = super.read(buffer, offset, count);
+        if (c > 0) write(buffer, offset, c);
+        return c;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        // Skipped bytes should be copied as well
+        byte[] buffer = new byte[(int) Math.min(count, BUFFER_SIZE)];
+        int c = read(buffer, 0, buffer.length);
+        return c == -1 ? 0 : c;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // Underlying streams are closed by owner
+    }
+
+    /**
+     * Reads and copies the rest of the source stream.
+     *
+     * @return Whether all data from the source stream was copied into output stream.
+     */
+    boolean drain() {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!mIsWriteFailed && read(buffer, 0, buffer.length) != -1) {
+            }
+            return !mIsWriteFailed;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void write(byte[] buffer, int offset, int count) {
+        if (mIsWriteFailed) return;
+        try {
+            mOut.write(buffer, offset, count);
+        } catch (IOException e) {
+            mIsWriteFailed = true;
+        }
+    }
+
+}
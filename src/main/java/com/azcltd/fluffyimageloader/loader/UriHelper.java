@@ -1,14 +1,25 @@
 package com.azcltd.fluffyimageloader.loader;
 
 import android.content.ContentResolver;
-import android.net.Uri;
 
 class UriHelper {
 
     private String mUriScheme;
 
     public UriHelper(String uri) {
-        mUriScheme = uri == null ? null: Uri.parse(uri).getScheme();
+        mUriScheme = uri == null ? null: getScheme(uri);
+    }
+
+    /**
+     * Same as {@code Uri.parse(uri).getScheme()}, but does not depend on Android framework classes.
+     */
+    static String getScheme(String uri) {
+        for (int i = 0, length = uri.length(); i < length; i++) {
+            char c = uri.charAt(i);
+            if (c == ':') return uri.substring(0, i);
+            if (c == '/' || c == '?' || c == '#') return null;
+        }
+        return null;
     }
 
     public boolean isLocal() {
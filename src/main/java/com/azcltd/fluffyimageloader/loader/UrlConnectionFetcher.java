@@ -0,0 +1,31 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetcher loading resources over http with platform's {@link HttpURLConnection}.
+ */
+public class UrlConnectionFetcher extends HttpFetcher {
+
+    /**
+     * Configures platform's connection pool. Note, that this pool is shared by all {@link HttpURLConnection} users of the
+     * process and its settings are read only once, so this method should be called before any connection is opened.
+     *
+     * @param maxIdleConnections Max number of idle connections kept for reuse, 0 disables connections reuse.
+     * @param keepAliveMs        Time to keep idle connections alive, in milliseconds.
+     */
+    public UrlConnectionFetcher setConnectionPool(int maxIdleConnections, long keepAliveMs) {
+        System.setProperty("http.keepAlive", String.valueOf(maxIdleConnections > 0));
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMs));
+        return this;
+    }
+
+    @Override
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+}
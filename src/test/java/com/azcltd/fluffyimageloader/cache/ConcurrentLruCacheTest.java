@@ -0,0 +1,195 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentLruCacheTest {
+
+    @Test
+    public void evictsEldestEntries() {
+        final List<String> evicted = new ArrayList<String>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3) {
+            @Override
+            protected void entryRemoved(boolean isEvicted, String key, String oldValue, String newValue) {
+                if (isEvicted) evicted.add(key);
+            }
+        };
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.put("d", "D");
+        cache.put("e", "E");
+
+        assertEquals(Arrays.asList("a", "b"), evicted);
+        assertEquals(Arrays.asList("c", "d", "e"), keys(cache));
+        assertEquals(2, cache.evictionCount());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void getMovesEntryToMostRecentlyUsed() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertEquals(Arrays.asList("c", "a", "d"), keys(cache));
+    }
+
+    @Test
+    public void peekDoesNotChangeOrderOrStats() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+
+        assertEquals("A", cache.peek("a"));
+        assertNull(cache.peek("x"));
+
+        assertEquals(Arrays.asList("a", "b"), keys(cache));
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+    @Test
+    public void drainsReadBuffersBeyondTheirCapacity() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+
+        for (int i = 0; i < 1000; i++) {
+            cache.get(i % 2 == 0 ? "a" : "b");
+        }
+        cache.get("a");
+
+        assertEquals(Arrays.asList("c", "b", "a"), keys(cache));
+        assertEquals(1001, cache.hitCount());
+    }
+
+    @Test
+    public void respectsSizeOf() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals(8, cache.size());
+
+        cache.put("c", "cccc");
+        assertEquals(8, cache.size());
+        assertEquals(Arrays.asList("b", "c"), keys(cache));
+
+        cache.put("b", "bb");
+        assertEquals(6, cache.size());
+        assertEquals(Arrays.asList("c", "b"), keys(cache));
+    }
+
+    @Test
+    public void reportsReplacedAndRemovedEntries() {
+        final List<String> removed = new ArrayList<String>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3) {
+            @Override
+            protected void entryRemoved(boolean isEvicted, String key, String oldValue, String newValue) {
+                removed.add(isEvicted + " " + key + " " + oldValue + " " + newValue);
+            }
+        };
+
+        cache.put("a", "A");
+        assertEquals("A", cache.put("a", "A2"));
+        assertEquals("A2", cache.remove("a"));
+        assertNull(cache.remove("a"));
+
+        assertEquals(Arrays.asList("false a A A2", "false a A2 null"), removed);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void createsMissingValues() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3) {
+            @Override
+            protected String create(String key) {
+                return key.toUpperCase();
+            }
+        };
+
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.hitCount());
+    }
+
+    @Test
+    public void keepsSizeConsistentUnderConcurrentAccess() throws Exception {
+        final AtomicInteger removedSize = new AtomicInteger();
+        final ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(50) {
+            @Override
+            protected void entryRemoved(boolean isEvicted, Integer key, Integer oldValue, Integer newValue) {
+                removedSize.incrementAndGet();
+            }
+        };
+
+        int threads = 8;
+        final int operations = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations; i++) {
+                            int key = (i * 31 + seed) % 200;
+                            if (i % 3 == 0) {
+                                cache.put(key, key);
+                            } else if (i % 17 == 0) {
+                                cache.remove(key);
+                            } else {
+                                Integer value = cache.get(key);
+                                if (value != null && value != key) failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(0, failures.get());
+        Map<Integer, Integer> snapshot = cache.snapshot();
+        assertTrue(cache.size() <= cache.maxSize());
+        assertEquals(snapshot.size(), cache.size());
+        assertEquals(cache.putCount() - snapshot.size(), removedSize.get());
+    }
+
+    private static <K, V> List<K> keys(ConcurrentLruCache<K, V> cache) {
+        return new ArrayList<K>(cache.snapshot().keySet());
+    }
+
+}
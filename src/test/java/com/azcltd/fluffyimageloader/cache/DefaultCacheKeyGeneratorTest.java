@@ -0,0 +1,48 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultCacheKeyGeneratorTest {
+
+    private final DefaultCacheKeyGenerator mGenerator = new DefaultCacheKeyGenerator();
+
+    /**
+     * Keys are names of cached files, so they should never change between versions.
+     */
+    @Test
+    public void generatesStableKeys() {
+        assertEquals("efd01f60ba992926", mGenerator.toCacheKey(""));
+        assertEquals("ba2e798dd3ed7dca", mGenerator.toCacheKey("http://example.com/image.png"));
+        assertEquals("da9ffb16c6e1548f", mGenerator.toCacheKey("http://example.com/image.png?size=large"));
+        assertEquals("961e832f376d63e0", mGenerator.toCacheKey("file:///sdcard/photo.jpg"));
+    }
+
+    @Test
+    public void generatesFileNameSafeKeys() {
+        String key = mGenerator.toCacheKey("http://example.com/path with spaces/"
+                + "\u043a\u0430\u0440\u0442\u0438\u043d\u043a\u0430.png");
+        assertTrue(key.matches("[0-9a-f]{16}"));
+    }
+
+    @Test
+    public void generatesDistinctKeysForSimilarUris() {
+        Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            keys.add(mGenerator.toCacheKey("http://example.com/images/" + i + ".png"));
+        }
+        assertEquals(10000, keys.size());
+    }
+
+    @Test
+    public void returnsNullForNullUri() {
+        assertNull(mGenerator.toCacheKey(null));
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.azcltd.fluffyimageloader.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replaysJournalInAccessOrder() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskIndex index = DiskIndex.get(dir);
+        index.load();
+        index.put("a", 10, null);
+        index.put("b", 20, new CacheMetadata("etag", null, 5L));
+        index.put("c", 30, null);
+        index.recordAccess("a");
+        index.remove("c");
+        index.put("d", 40, null); // Flushes buffered read record
+
+        DiskIndex replayed = DiskIndex.get(copyJournal(dir));
+        replayed.load();
+
+        assertEquals(70L, replayed.size());
+        assertTrue(replayed.mightContain("a"));
+        assertFalse(replayed.mightContain("c"));
+        assertEquals("etag", replayed.getMetadata("b").getETag());
+        // Metadata lookups do not change access order
+        assertEquals(Arrays.asList("b", "a"), replayed.trimToSize(40, 10));
+    }
+
+    @Test
+    public void escapesKeysAndMetadata() throws IOException {
+        String key = "key with spaces\nand %25 line\rbreaks";
+        File dir = mFolder.newFolder();
+        DiskIndex index = DiskIndex.get(dir);
+        index.load();
+        index.put(key, 10, new CacheMetadata("-", "Mon, 01 Jan 2024 00:00:00 GMT", 7L));
+        index.put("other", 20, new CacheMetadata(null, "100%", 8L));
+
+        List<String> lines = readLines(new File(dir, DiskIndex.JOURNAL_FILE));
+        assertEquals(5, lines.size()); // Header, PUT and META records of both entries
+
+        DiskIndex replayed = DiskIndex.get(copyJournal(dir));
+        replayed.load();
+
+        assertEquals(30L, replayed.size());
+        CacheMetadata metadata = replayed.getMetadata(key);
+        assertEquals("-", metadata.getETag());
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", metadata.getLastModified());
+        assertEquals(7L, metadata.getExpires());
+
+        CacheMetadata other = replayed.getMetadata("other");
+        assertNull(other.getETag());
+        assertEquals("100%", other.getLastModified());
+    }
+
+    @Test
+    public void skipsTruncatedRecords() throws IOException {
+        File dir = mFolder.newFolder();
+        writeFile(new File(dir, DiskIndex.JOURNAL_FILE), "fluffy.DiskIndex 1\nPUT 10 1 a\nPUT 20 2 b\nDEL b\nPUT 30");
+
+        DiskIndex index = DiskIndex.get(dir);
+        index.load();
+
+        assertEquals(10L, index.size());
+        assertTrue(index.mightContain("a"));
+        assertFalse(index.mightContain("b"));
+    }
+
+    @Test
+    public void rebuildsFromDirectoryWithoutJournal() throws IOException {
+        File dir = mFolder.newFolder();
+        writeFile(new File(dir, "0/1/first"), "12345");
+        writeFile(new File(dir, "2/3/second"), "123");
+        writeFile(new File(dir, "2/3/save123.fluffy-tmp"), "123");
+        writeFile(new File(dir, ".nomedia"), "");
+
+        DiskIndex index = DiskIndex.get(dir);
+        index.load();
+
+        assertEquals(8L, index.size());
+        assertTrue(index.mightContain("first"));
+        assertTrue(index.mightContain("second"));
+        assertFalse(index.mightContain(".nomedia"));
+        assertFalse(new File(dir, "2/3/save123.fluffy-tmp").exists());
+        assertTrue(new File(dir, DiskIndex.JOURNAL_FILE).exists());
+    }
+
+    @Test
+    public void compactsJournal() throws IOException {
+        File dir = mFolder.newFolder();
+        DiskIndex index = DiskIndex.get(dir);
+        index.load();
+        for (int i = 0; i < 3000; i++) {
+            index.put("key" + (i % 10), i, null);
+        }
+
+        assertTrue(readLines(new File(dir, DiskIndex.JOURNAL_FILE)).size() < 1500);
+
+        DiskIndex replayed = DiskIndex.get(copyJournal(dir));
+        replayed.load();
+        assertEquals(index.size(), replayed.size());
+    }
+
+    @Test
+    public void doesNotWaitForLoadingOnReads() throws IOException {
+        DiskIndex index = DiskIndex.get(mFolder.newFolder());
+
+        assertTrue(index.mightContain("a"));
+        assertNull(index.getMetadata("a"));
+        index.recordAccess("a");
+    }
+
+    private File copyJournal(File dir) throws IOException {
+        File copy = mFolder.newFolder();
+        List<String> lines = readLines(new File(dir, DiskIndex.JOURNAL_FILE));
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) content.append(line).append('\n');
+        writeFile(new File(copy, DiskIndex.JOURNAL_FILE), content.toString());
+        return copy;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) lines.add(line);
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
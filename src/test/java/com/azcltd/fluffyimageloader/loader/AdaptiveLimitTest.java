@@ -0,0 +1,91 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveLimitTest {
+
+    @Test
+    public void increasesLimitAfterSaturatedWindow() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 4);
+
+        succeed(limit, 4, 100L, 1000L, true);
+        assertEquals(5, limit.getLimit());
+
+        succeed(limit, 5, 100L, 1000L, true);
+        assertEquals(6, limit.getLimit());
+    }
+
+    @Test
+    public void keepsLimitIfItWasNotReached() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 4);
+
+        succeed(limit, 12, 100L, 1000L, false);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowAboveMaxLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 5, 4);
+
+        succeed(limit, 4, 100L, 1000L, true);
+        succeed(limit, 5, 100L, 1000L, true);
+        assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    public void decreasesLimitWhenThroughputDrops() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 4);
+
+        succeed(limit, 4, 100L, 100000L, true);
+        assertEquals(5, limit.getLimit());
+
+        succeed(limit, 5, 100L, 100L, true);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void decreasesLimitAfterSeveralWindowsWithGrownLatency() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 4);
+        succeed(limit, 4, 10L, 1000L, false);
+
+        succeed(limit, 8, 1000L, 1000L, false);
+        assertEquals(4, limit.getLimit());
+
+        succeed(limit, 4, 1000L, 1000L, false);
+        assertEquals(3, limit.getLimit());
+    }
+
+    @Test
+    public void decreasesLimitOnFailure() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 8);
+
+        limit.onFailure();
+        assertEquals(6, limit.getLimit());
+
+        for (int i = 0; i < 10; i++) limit.onFailure();
+        assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void clampsLimitToNewBounds() {
+        AdaptiveLimit limit = new AdaptiveLimit(1, 12, 8);
+
+        limit.setBounds(2, 4);
+        assertEquals(4, limit.getLimit());
+
+        limit.setBounds(6, 10);
+        assertEquals(6, limit.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongBounds() {
+        new AdaptiveLimit(4, 2, 3);
+    }
+
+    private static void succeed(AdaptiveLimit limit, int count, long latency, long bytes, boolean saturated) {
+        for (int i = 0; i < count; i++) limit.onSuccess(latency, bytes, saturated);
+    }
+
+}
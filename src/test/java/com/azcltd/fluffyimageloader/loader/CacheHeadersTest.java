@@ -0,0 +1,163 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import com.azcltd.fluffyimageloader.cache.CacheMetadata;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheHeadersTest {
+
+    private static final long MINUTE = 60L * 1000L;
+    private static final long HOUR = 60L * MINUTE;
+    private static final long DAY = 24L * HOUR;
+    /** Allowed difference between expiration time and time of the check */
+    private static final long TOLERANCE = 5000L;
+
+    @Test
+    public void takesExpirationFromMaxAge() {
+        CacheMetadata metadata = toMetadata(new Response().header("Cache-Control", "public, max-age=60"));
+        assertExpiresIn(MINUTE, metadata);
+
+        assertExpiresIn(0L, toMetadata(new Response().header("Cache-Control", "max-age=wrong")));
+    }
+
+    @Test
+    public void prefersCacheControlOverExpires() {
+        CacheMetadata metadata = toMetadata(new Response()
+                .header("Cache-Control", "max-age=60")
+                .header("Expires", "Wed, 21 Oct 2037 07:28:00 GMT"));
+        assertExpiresIn(MINUTE, metadata);
+    }
+
+    @Test
+    public void treatsNoCacheAsExpired() {
+        assertExpiresIn(0L, toMetadata(new Response().header("Cache-Control", "No-Cache")));
+    }
+
+    @Test
+    public void takesExpirationFromExpires() {
+        CacheMetadata metadata = toMetadata(new Response().header("Expires", "Wed, 21 Oct 2037 07:28:00 GMT"));
+        assertEquals(2139722880000L, metadata.getExpires());
+
+        assertExpiresIn(0L, toMetadata(new Response().header("Expires", "0")));
+    }
+
+    @Test
+    public void estimatesExpirationFromLastModified() {
+        long now = System.currentTimeMillis();
+        assertExpiresIn(6L * MINUTE, toMetadata(new Response().header("Last-Modified", formatDate(now - HOUR))));
+        assertExpiresIn(DAY, toMetadata(new Response().header("Last-Modified", formatDate(now - 30L * DAY))));
+    }
+
+    @Test
+    public void usesDefaultMaxAgeWithoutExpirationInfo() {
+        assertExpiresIn(HOUR, CacheHeaders.toMetadata(new Response(), null, HOUR));
+
+        assertNull(CacheHeaders.toMetadata(new Response(), null, CacheMetadata.NEVER_EXPIRES));
+        CacheMetadata metadata = CacheHeaders.toMetadata(new Response().header("ETag", "\"v1\""), null,
+                CacheMetadata.NEVER_EXPIRES);
+        assertEquals(CacheMetadata.NEVER_EXPIRES, metadata.getExpires());
+    }
+
+    @Test
+    public void keepsPreviousValidators() {
+        CacheMetadata previous = new CacheMetadata("\"v1\"", "Mon, 01 Jan 2024 00:00:00 GMT", 0L);
+
+        CacheMetadata metadata = CacheHeaders.toMetadata(new Response().header("Cache-Control", "max-age=60"),
+                previous, HOUR);
+        assertEquals("\"v1\"", metadata.getETag());
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", metadata.getLastModified());
+        assertExpiresIn(MINUTE, metadata);
+
+        metadata = CacheHeaders.toMetadata(new Response().header("ETag", "\"v2\""), previous, HOUR);
+        assertEquals("\"v2\"", metadata.getETag());
+    }
+
+    @Test
+    public void detectsNoStore() {
+        assertTrue(CacheHeaders.isStorable(new Response()));
+        assertTrue(CacheHeaders.isStorable(new Response().header("Cache-Control", "no-cache, max-age=0")));
+        assertFalse(CacheHeaders.isStorable(new Response().header("Cache-Control", "no-store")));
+        assertFalse(CacheHeaders.isStorable(new Response().header("Cache-Control", "private, No-Store")));
+    }
+
+    @Test
+    public void addsConditionalHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "image/webp");
+
+        Map<String, String> result = CacheHeaders.addConditionalHeaders(headers,
+                new CacheMetadata("\"v1\"", "Mon, 01 Jan 2024 00:00:00 GMT", 0L));
+        assertEquals("image/webp", result.get("Accept"));
+        assertEquals("\"v1\"", result.get("If-None-Match"));
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", result.get("If-Modified-Since"));
+        assertEquals(1, headers.size());
+
+        result = CacheHeaders.addConditionalHeaders(null, new CacheMetadata(null, null, 0L));
+        assertTrue(result.isEmpty());
+    }
+
+    private static CacheMetadata toMetadata(FetchResponse response) {
+        return CacheHeaders.toMetadata(response, null, HOUR);
+    }
+
+    private static void assertExpiresIn(long maxAge, CacheMetadata metadata) {
+        long delta = metadata.getExpires() - (System.currentTimeMillis() + maxAge);
+        assertTrue("Unexpected expiration time, delta " + delta, Math.abs(delta) < TOLERANCE);
+    }
+
+    private static String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static class Response extends FetchResponse {
+        private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+        Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1L;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+
+}
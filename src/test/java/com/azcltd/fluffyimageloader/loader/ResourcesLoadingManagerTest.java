@@ -0,0 +1,173 @@
+package com.azcltd.fluffyimageloader.loader;
+
+import com.azcltd.fluffyimageloader.loader.ResourcesLoadingManager.LoadingState;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResourcesLoadingManagerTest {
+
+    private final ResourcesLoadingManager<Object> mManager = new ResourcesLoadingManager<Object>();
+
+    @Test
+    public void takesUrisByStartTime() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        add("http://a", 200, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://b", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://c", 100, ResourceSpecs.PRIORITY_NORMAL);
+
+        assertEquals("http://b", mManager.takeNextUriToManage());
+        assertEquals("http://c", mManager.takeNextUriToManage());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals("http://a", mManager.takeNextUriToManage());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(LoadingState.MANAGING, mManager.getState("http://a"));
+    }
+
+    @Test
+    public void takesDueUrisByPriorityAndThenNewestFirst() throws InterruptedException {
+        add("http://a", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://b", 0, ResourceSpecs.PRIORITY_PREFETCH);
+        add("http://c", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://d", 0, ResourceSpecs.PRIORITY_HIGH);
+
+        assertEquals(Arrays.asList("http://d", "http://c", "http://a", "http://b"), takeAll(4));
+    }
+
+    @Test
+    public void requestedAgainUriBecomesNewest() throws InterruptedException {
+        add("http://a", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://b", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://a", 0, ResourceSpecs.PRIORITY_NORMAL);
+
+        assertEquals(Arrays.asList("http://a", "http://b"), takeAll(2));
+        assertEquals(2, mManager.getSpecsList("http://a").size());
+    }
+
+    @Test
+    public void pollsTasksByPriorityAndThenNewestFirst() {
+        queue("http://a", ResourceSpecs.PRIORITY_NORMAL);
+        queue("http://b", ResourceSpecs.PRIORITY_HIGH);
+        queue("http://c", ResourceSpecs.PRIORITY_NORMAL);
+
+        assertEquals("http://b", poll(null));
+        assertEquals("http://c", poll(null));
+        assertEquals("http://a", poll(null));
+        assertNull(poll(null));
+    }
+
+    @Test
+    public void keepsTasksOfSkippedGroupsInQueue() {
+        queue("http://a", ResourceSpecs.PRIORITY_NORMAL, "x");
+        queue("http://b", ResourceSpecs.PRIORITY_NORMAL, "y");
+        queue("http://c", ResourceSpecs.PRIORITY_NORMAL, "x");
+        queue("http://d", ResourceSpecs.PRIORITY_HIGH, "x");
+
+        ResourcesLoadingManager.GroupFilter notX = new ResourcesLoadingManager.GroupFilter() {
+            @Override
+            public boolean accept(String group) {
+                return !group.equals("x");
+            }
+        };
+        assertEquals("http://b", poll(notX));
+        assertNull(poll(notX));
+        assertEquals("http://d", poll(null));
+        assertEquals("http://c", poll(null));
+        assertEquals("http://a", poll(null));
+    }
+
+    @Test
+    public void pollsTasksByPriorityAcrossGroups() {
+        queue("http://a", ResourceSpecs.PRIORITY_NORMAL, "x");
+        queue("http://b", ResourceSpecs.PRIORITY_HIGH, "y");
+        queue("http://c", ResourceSpecs.PRIORITY_NORMAL, "y");
+        queue("http://d", ResourceSpecs.PRIORITY_NORMAL, "z");
+        mManager.remove("http://d");
+
+        assertEquals("http://b", poll(null));
+        assertEquals("http://c", poll(null));
+        assertEquals("http://a", poll(null));
+        assertNull(poll(null));
+    }
+
+    @Test
+    public void removesUriOnceAllSpecsAreRebound() throws InterruptedException {
+        ResourceSpecs<Object> specs = add("http://a", 0, ResourceSpecs.PRIORITY_NORMAL);
+        add("http://b", 0, ResourceSpecs.PRIORITY_NORMAL);
+
+        specs.setUri("http://c");
+
+        assertTrue(mManager.isOutdated("http://a"));
+        assertFalse(mManager.isOutdated("http://b"));
+        assertEquals(Arrays.asList("http://b"), takeAll(1));
+    }
+
+    @Test
+    public void notifiesListenerWhenQueuedTaskIsRequeued() {
+        final List<LoadingState> requeued = new ArrayList<LoadingState>();
+        mManager.setOnTaskRequeuedListener(new ResourcesLoadingManager.OnTaskRequeuedListener() {
+            @Override
+            public void onTaskRequeued(LoadingState state) {
+                requeued.add(state);
+            }
+        });
+
+        queue("http://a", ResourceSpecs.PRIORITY_NORMAL);
+        add("http://a", 0, ResourceSpecs.PRIORITY_HIGH);
+
+        assertEquals(Arrays.asList(LoadingState.WAIT_LOADING), requeued);
+        assertEquals("http://a", poll(null));
+        assertNull(poll(null));
+    }
+
+    private ResourceSpecs<Object> add(String uri, long delay, int priority) {
+        ResourceSpecs<Object> specs = new ResourceSpecs<Object>(uri) {
+        };
+        specs.setDelay(delay);
+        specs.setPriority(priority);
+        mManager.addSpecs(specs, null);
+        return specs;
+    }
+
+    private void queue(String uri, int priority) {
+        add(uri, 0, priority);
+        mManager.queueTask(uri, LoadingState.WAIT_LOADING, new UriTask(uri));
+    }
+
+    private void queue(String uri, int priority, String group) {
+        add(uri, 0, priority);
+        mManager.queueTask(uri, LoadingState.WAIT_LOADING, new UriTask(uri), group);
+    }
+
+    private String poll(ResourcesLoadingManager.GroupFilter filter) {
+        Runnable task = filter == null ? mManager.pollNextTask(LoadingState.WAIT_LOADING)
+                : mManager.pollNextTask(LoadingState.WAIT_LOADING, filter);
+        return task == null ? null : ((UriTask) task).mUri;
+    }
+
+    private List<String> takeAll(int count) throws InterruptedException {
+        List<String> uris = new ArrayList<String>();
+        for (int i = 0; i < count; i++) uris.add(mManager.takeNextUriToManage());
+        return uris;
+    }
+
+    private static class UriTask implements Runnable {
+        final String mUri;
+
+        UriTask(String uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+}